@@ -0,0 +1,13 @@
+#!/usr/bin/env bash
+# Builds the bot and the benchmarks, then runs them, writing the results to
+# benchmarks/target/jmh-result.json. Any arguments are passed on to JMH, e.g.
+#   ./benchmarks/run.sh RefreshCycleBenchmark -p users=1000
+
+set -e
+
+cd "$(dirname "$0")/.."
+
+mvn -q install
+mvn -q -f benchmarks/pom.xml clean package
+
+java -jar benchmarks/target/benchmarks.jar -rf json -rff benchmarks/target/jmh-result.json "$@"
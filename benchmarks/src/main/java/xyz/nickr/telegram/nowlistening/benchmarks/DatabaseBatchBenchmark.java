@@ -0,0 +1,96 @@
+package xyz.nickr.telegram.nowlistening.benchmarks;
+
+import com.google.gson.JsonObject;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import xyz.nickr.telegram.nowlistening.db.DatabaseController;
+import xyz.nickr.telegram.nowlistening.db.models.NowListeningMessage;
+import xyz.nickr.telegram.nowlistening.db.models.SpotifyPlayingData;
+
+/**
+ * The batched writes: flushing everyone's playing data, and disabling
+ * a large set of expired messages at once.
+ *
+ * Each invocation gets freshly dirtied or expired rows, so these are timed one shot at a time.
+ * Only SQLite is measured, as the messages are expired by editing the database file directly.
+ *
+ * @author Nick Robson
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class DatabaseBatchBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    private int messages;
+
+    private Path directory;
+    private JsonObject config;
+    private DatabaseController databaseController;
+    private Set<NowListeningMessage> expired;
+    private long generation;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        directory = Files.createTempDirectory("nowlistening-bench");
+        config = Fixtures.config(directory.resolve("bench.db"), "sqlite");
+        // one message per user, so the flush and the disable pass touch the same number of rows
+        databaseController = Fixtures.seed(config, messages, 1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Fixtures.deleteRecursively(directory);
+    }
+
+    @Setup(Level.Invocation)
+    public void prepare() throws SQLException {
+        generation++;
+        long now = Instant.now().getEpochSecond();
+        for (long user = 1; user <= messages; user++) {
+            databaseController.updatePlayingData(SpotifyPlayingData.builder()
+                    .telegramUserId(user)
+                    .lastTrackName(StubSpotifyController.trackName(user + generation))
+                    .lastTrackArtist(StubSpotifyController.trackArtist(user))
+                    .lastTrackUrl(StubSpotifyController.trackUrl(user + generation))
+                    .lastChecked(now)
+                    .playing(true)
+                    .build());
+        }
+
+        Fixtures.expireAllMessages(config);
+        expired = databaseController.getExpiringMessages();
+    }
+
+    @Benchmark
+    public int flushPlayingData() throws SQLException {
+        return databaseController.flushPlayingData();
+    }
+
+    @Benchmark
+    public Set<NowListeningMessage> disableExpiredMessages() throws SQLException {
+        return databaseController.disableExpiredMessages(expired);
+    }
+
+}
@@ -0,0 +1,102 @@
+package xyz.nickr.telegram.nowlistening.benchmarks;
+
+import com.google.gson.JsonObject;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import xyz.nickr.telegram.nowlistening.db.DatabaseController;
+import xyz.nickr.telegram.nowlistening.db.models.NowListeningMessage;
+import xyz.nickr.telegram.nowlistening.db.models.SpotifyPlayingData;
+import xyz.nickr.telegram.nowlistening.db.models.UserSnapshot;
+
+/**
+ * The {@link DatabaseController} calls made for every user on every cycle,
+ * against a SQLite file in a temporary directory. As in the bot, playing
+ * data is only read from the database the first time each user is seen.
+ *
+ * @author Nick Robson
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DatabaseBenchmark {
+
+    @Param({"1000", "10000"})
+    private int users;
+
+    @Param({"sqlite", "memory"})
+    private String engine;
+
+    private Path directory;
+    private DatabaseController databaseController;
+    private long nextUser;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        directory = Files.createTempDirectory("nowlistening-bench");
+        JsonObject config = Fixtures.config(directory.resolve("bench.db"), engine);
+        databaseController = Fixtures.seed(config, users, 2);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Fixtures.deleteRecursively(directory);
+    }
+
+    private long nextUser() {
+        nextUser = nextUser % users + 1;
+        return nextUser;
+    }
+
+    @Benchmark
+    public Optional<SpotifyPlayingData> getPlayingData() throws SQLException {
+        return databaseController.getPlayingData(nextUser());
+    }
+
+    @Benchmark
+    public void updatePlayingData() throws SQLException {
+        long user = nextUser();
+        databaseController.updatePlayingData(SpotifyPlayingData.builder()
+                .telegramUserId(user)
+                .lastTrackName(StubSpotifyController.trackName(user + nextUser))
+                .lastTrackArtist(StubSpotifyController.trackArtist(user))
+                .lastTrackUrl(StubSpotifyController.trackUrl(user))
+                .lastChecked(Instant.now().getEpochSecond())
+                .playing(true)
+                .build());
+    }
+
+    @Benchmark
+    public Set<NowListeningMessage> getEnabledNowListeningMessages() throws SQLException {
+        return databaseController.getEnabledNowListeningMessages(nextUser());
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public List<UserSnapshot> getRefreshSnapshot() throws SQLException {
+        return databaseController.getRefreshSnapshot();
+    }
+
+}
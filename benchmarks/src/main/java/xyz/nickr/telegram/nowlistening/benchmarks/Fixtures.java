@@ -0,0 +1,178 @@
+package xyz.nickr.telegram.nowlistening.benchmarks;
+
+import com.google.gson.JsonObject;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.stream.Stream;
+import xyz.nickr.telegram.nowlistening.db.DatabaseController;
+import xyz.nickr.telegram.nowlistening.db.SqliteDatabaseController;
+import xyz.nickr.telegram.nowlistening.db.models.SpotifyPlayingData;
+import xyz.nickr.telegram.nowlistening.db.models.SpotifyUser;
+
+/**
+ * Builds the config and seeded databases the benchmarks run against.
+ *
+ * @author Nick Robson
+ */
+final class Fixtures {
+
+    private Fixtures() {}
+
+    /**
+     * A config for a bot using the given database engine and file, with the
+     * Spotify governor's limits raised far enough that they never come into play.
+     */
+    static JsonObject config(Path databaseFile, String engine) {
+        JsonObject database = new JsonObject();
+        database.addProperty("engine", engine);
+        database.addProperty("url", "jdbc:sqlite:" + databaseFile.toAbsolutePath());
+        database.addProperty("reader_pool_size", 4);
+
+        JsonObject spotify = new JsonObject();
+        spotify.addProperty("client_id", "benchmark");
+        spotify.addProperty("client_secret", "benchmark");
+        spotify.addProperty("redirect_uri", "http://localhost/callback");
+        spotify.addProperty("requests_per_second", 1_000_000_000);
+        spotify.addProperty("initial_concurrency", 1024);
+        spotify.addProperty("max_concurrency", 1024);
+
+        JsonObject telegram = new JsonObject();
+        telegram.addProperty("api_key", "benchmark");
+
+        JsonObject scheduler = new JsonObject();
+        scheduler.addProperty("refresh_concurrency", 8);
+        scheduler.addProperty("refresh_deadline_seconds", 600);
+
+        JsonObject polling = new JsonObject();
+        polling.addProperty("audience_only", false);
+
+        JsonObject config = new JsonObject();
+        config.add("database", database);
+        config.add("spotify", spotify);
+        config.add("telegram", telegram);
+        config.add("scheduler", scheduler);
+        config.add("polling", polling);
+        return config;
+    }
+
+    /**
+     * Creates a database holding users 1 to {@code users}, each with valid tokens,
+     * playing data and {@code messagesPerUser} enabled messages, and opens it.
+     * SQLite databases are filled directly, as going through the controller row by row is slow.
+     */
+    static DatabaseController seed(JsonObject config, int users, int messagesPerUser) throws SQLException {
+        DatabaseController databaseController = DatabaseController.create(config);
+        if (!(databaseController instanceof SqliteDatabaseController)) {
+            seedThroughController(databaseController, users, messagesPerUser);
+            return databaseController;
+        }
+
+        // opening the controller has created the schema, but it only loads users on opening,
+        // so the seeded database has to be opened again afterwards
+        String url = config.getAsJsonObject("database").get("url").getAsString();
+        long now = Instant.now().getEpochSecond();
+        try (Connection connection = DriverManager.getConnection(url)) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement user = connection.prepareStatement(
+                    "INSERT INTO spotify_user (telegram_user, access_token, token_type, scope, expiry_date, refresh_token) " +
+                            "VALUES (?, ?, 'Bearer', 'user-read-currently-playing', ?, ?)");
+                 PreparedStatement playingData = connection.prepareStatement(
+                         "INSERT INTO spotify_playing_data (telegram_user, last_track_name, last_track_artist, last_track_url, last_checked, playing) " +
+                                 "VALUES (?, ?, ?, ?, ?, 1)");
+                 PreparedStatement message = connection.prepareStatement(
+                         "INSERT INTO now_listening_messages (telegram_user, inline_message_id, time_added, enabled, permanent) " +
+                                 "VALUES (?, ?, ?, 1, 0)")) {
+                for (long id = 1; id <= users; id++) {
+                    user.setLong(1, id);
+                    user.setString(2, "access-" + id);
+                    user.setLong(3, now + 3600);
+                    user.setString(4, "refresh-" + id);
+                    user.addBatch();
+
+                    playingData.setLong(1, id);
+                    playingData.setString(2, StubSpotifyController.trackName(id));
+                    playingData.setString(3, StubSpotifyController.trackArtist(id));
+                    playingData.setString(4, StubSpotifyController.trackUrl(id));
+                    playingData.setLong(5, now);
+                    playingData.addBatch();
+
+                    for (int i = 0; i < messagesPerUser; i++) {
+                        message.setLong(1, id);
+                        message.setString(2, id + "-" + i);
+                        message.setLong(3, now);
+                        message.addBatch();
+                    }
+
+                    if (id % 1000 == 0) {
+                        user.executeBatch();
+                        playingData.executeBatch();
+                        message.executeBatch();
+                    }
+                }
+                user.executeBatch();
+                playingData.executeBatch();
+                message.executeBatch();
+            }
+            connection.commit();
+        }
+
+        return DatabaseController.create(config);
+    }
+
+    private static void seedThroughController(DatabaseController databaseController, int users, int messagesPerUser) throws SQLException {
+        long now = Instant.now().getEpochSecond();
+        for (long id = 1; id <= users; id++) {
+            databaseController.updateSpotifyUser(SpotifyUser.builder()
+                    .telegramUserId(id)
+                    .accessToken("access-" + id)
+                    .tokenType("Bearer")
+                    .scope("user-read-currently-playing")
+                    .expiryDate(now + 3600)
+                    .refreshToken("refresh-" + id)
+                    .build());
+            databaseController.updatePlayingData(SpotifyPlayingData.builder()
+                    .telegramUserId(id)
+                    .lastTrackName(StubSpotifyController.trackName(id))
+                    .lastTrackArtist(StubSpotifyController.trackArtist(id))
+                    .lastTrackUrl(StubSpotifyController.trackUrl(id))
+                    .lastChecked(now)
+                    .playing(true)
+                    .build());
+            for (int i = 0; i < messagesPerUser; i++) {
+                databaseController.addNowListeningMessage(id, id + "-" + i, false);
+            }
+        }
+        databaseController.flushPlayingData();
+    }
+
+    /**
+     * Re-enables every expiring message and backdates it past the expiry cutoff.
+     */
+    static void expireAllMessages(JsonObject config) throws SQLException {
+        String url = config.getAsJsonObject("database").get("url").getAsString();
+        try (Connection connection = DriverManager.getConnection(url);
+             PreparedStatement statement = connection.prepareStatement(
+                     "UPDATE now_listening_messages SET enabled = 1, time_added = 0 WHERE permanent = 0")) {
+            statement.executeUpdate();
+        }
+    }
+
+    static void deleteRecursively(Path directory) throws IOException {
+        if (directory == null) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+}
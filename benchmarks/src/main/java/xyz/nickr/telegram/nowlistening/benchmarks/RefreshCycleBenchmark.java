@@ -0,0 +1,82 @@
+package xyz.nickr.telegram.nowlistening.benchmarks;
+
+import com.google.gson.JsonObject;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import xyz.nickr.telegram.nowlistening.db.DatabaseController;
+import xyz.nickr.telegram.nowlistening.scheduler.ActiveAudience;
+import xyz.nickr.telegram.nowlistening.scheduler.PlayingTrackRefresher;
+import xyz.nickr.telegram.nowlistening.scheduler.ShardCoordinator;
+
+/**
+ * A full {@link PlayingTrackRefresher} cycle, from loading the snapshot to
+ * storing everyone's new playing data, against a stubbed Spotify.
+ *
+ * This measures our own overhead per cycle; Spotify's latency and rate
+ * limits are left out, as is sending the resulting edits to Telegram.
+ *
+ * @author Nick Robson
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RefreshCycleBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    private int users;
+
+    @Param({"sqlite", "memory"})
+    private String engine;
+
+    /** one in this many refreshes finds the user playing something new */
+    @Param({"4"})
+    private int changeEvery;
+
+    private Path directory;
+    private DatabaseController databaseController;
+    private PlayingTrackRefresher refresher;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        directory = Files.createTempDirectory("nowlistening-bench");
+        JsonObject config = Fixtures.config(directory.resolve("bench.db"), engine);
+        databaseController = Fixtures.seed(config, users, 1);
+        refresher = new PlayingTrackRefresher(
+                config,
+                databaseController,
+                new StubSpotifyController(config, databaseController, changeEvery),
+                new ActiveAudience(config, databaseController),
+                new ShardCoordinator(config, databaseController));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Fixtures.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public int cycle() throws SQLException {
+        refresher.run();
+        return databaseController.flushPlayingData();
+    }
+
+}
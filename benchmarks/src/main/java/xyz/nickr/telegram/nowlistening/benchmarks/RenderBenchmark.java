@@ -0,0 +1,110 @@
+package xyz.nickr.telegram.nowlistening.benchmarks;
+
+import com.google.gson.JsonObject;
+import com.jtelegram.api.util.TextBuilder;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import xyz.nickr.telegram.nowlistening.db.DatabaseController;
+import xyz.nickr.telegram.nowlistening.db.models.SpotifyPlayingData;
+import xyz.nickr.telegram.nowlistening.scheduler.ActiveAudience;
+import xyz.nickr.telegram.nowlistening.scheduler.ShardCoordinator;
+import xyz.nickr.telegram.nowlistening.telegram.MessageLocale;
+import xyz.nickr.telegram.nowlistening.telegram.TelegramController;
+
+/**
+ * Rendering a user's now listening message, which happens for every edit we send.
+ *
+ * @author Nick Robson
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RenderBenchmark {
+
+    /** whether the track has characters that need escaping */
+    @Param({"plain", "escaped"})
+    private String titles;
+
+    private Path directory;
+    private TelegramController telegramController;
+    private MessageLocale german;
+    private SpotifyPlayingData playing;
+    private SpotifyPlayingData stopped;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("nowlistening-bench");
+        JsonObject config = Fixtures.config(directory.resolve("bench.db"), "memory");
+        DatabaseController databaseController = DatabaseController.create(config);
+        telegramController = new TelegramController(
+                config,
+                databaseController,
+                new StubSpotifyController(config, databaseController, 1),
+                new ActiveAudience(config, databaseController),
+                new ShardCoordinator(config, databaseController));
+        german = MessageLocale.forLanguage("de");
+
+        boolean escaped = "escaped".equals(titles);
+        playing = SpotifyPlayingData.builder()
+                .telegramUserId(1)
+                .lastTrackName(escaped ? "Rock & Roll <Live at the BBC>" : "Rock and Roll (Live at the BBC)")
+                .lastTrackArtist(escaped ? "Simon & Garfunkel" : "Simon and Garfunkel")
+                .lastTrackUrl("https://open.spotify.com/track/1")
+                .playing(true)
+                .build();
+        stopped = playing.withPlaying(false);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Fixtures.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public String htmlEscaped() {
+        return TextBuilder.htmlEscaped(playing.getLastTrackName());
+    }
+
+    @Benchmark
+    public String textBuilder() {
+        return TextBuilder.create()
+                .bold(playing.getLastTrackName())
+                .plain(" by ")
+                .italics(playing.getLastTrackArtist())
+                .toHtml();
+    }
+
+    @Benchmark
+    public String getMessagePlaying() {
+        return telegramController.getMessage(playing);
+    }
+
+    @Benchmark
+    public String getMessageStopped() {
+        return telegramController.getMessage(stopped, false, MessageLocale.ENGLISH);
+    }
+
+    @Benchmark
+    public String getMessageLocalised() {
+        return telegramController.getMessage(playing, true, german);
+    }
+
+}
@@ -0,0 +1,70 @@
+package xyz.nickr.telegram.nowlistening.benchmarks;
+
+import com.google.gson.JsonObject;
+import com.wrapper.spotify.model_objects.miscellaneous.CurrentlyPlaying;
+import com.wrapper.spotify.model_objects.specification.ArtistSimplified;
+import com.wrapper.spotify.model_objects.specification.ExternalUrl;
+import com.wrapper.spotify.model_objects.specification.Track;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import xyz.nickr.telegram.nowlistening.db.DatabaseController;
+import xyz.nickr.telegram.nowlistening.db.models.SpotifyUser;
+import xyz.nickr.telegram.nowlistening.spotify.SpotifyController;
+
+/**
+ * A {@link SpotifyController} that answers from memory instead of asking Spotify.
+ *
+ * Every {@code changeEvery}th call moves the user it's for on to their next track,
+ * so the refresher sees a realistic mix of changed and unchanged playing data.
+ *
+ * @author Nick Robson
+ */
+class StubSpotifyController extends SpotifyController {
+
+    private static final int TRACKS = 64;
+
+    private final AtomicLong calls = new AtomicLong();
+    private final Map<Long, Long> tracks = new ConcurrentHashMap<>();
+    private final int changeEvery;
+
+    StubSpotifyController(JsonObject config, DatabaseController databaseController, int changeEvery) {
+        super(config, databaseController);
+        this.changeEvery = Math.max(1, changeEvery);
+    }
+
+    static String trackName(long track) {
+        return "Track " + Math.floorMod(track, TRACKS);
+    }
+
+    static String trackArtist(long track) {
+        return "Artist " + Math.floorMod(track, TRACKS / 4) + ", Featured Artist";
+    }
+
+    static String trackUrl(long track) {
+        return "https://open.spotify.com/track/" + Math.floorMod(track, TRACKS);
+    }
+
+    @Override
+    protected CurrentlyPlaying getCurrentlyPlaying(SpotifyUser user) {
+        long call = calls.getAndIncrement();
+        long track = tracks.compute(user.getTelegramUserId(),
+                (id, current) -> (current == null ? id : current) + (call % changeEvery == 0 ? 1 : 0));
+
+        Track item = new Track.Builder()
+                .setName(trackName(track))
+                .setArtists(
+                        new ArtistSimplified.Builder().setName("Artist " + Math.floorMod(track, TRACKS / 4)).build(),
+                        new ArtistSimplified.Builder().setName("Featured Artist").build())
+                .setExternalUrls(new ExternalUrl.Builder().setExternalUrls(Map.of("spotify", trackUrl(track))).build())
+                .setDurationMs(180_000)
+                .build();
+
+        return new CurrentlyPlaying.Builder()
+                .setItem(item)
+                .setIs_playing(true)
+                .setProgress_ms((int) (call % 180_000))
+                .build();
+    }
+
+}
@@ -0,0 +1,13 @@
+#!/usr/bin/env bash
+# Builds the bot and the load test, then runs it against local stand-ins for
+# Spotify and Telegram. Takes an optional settings file, see
+# loadtest/src/main/resources/loadtest.json for the defaults.
+
+set -e
+
+cd "$(dirname "$0")/.."
+
+mvn -q install
+mvn -q -f loadtest/pom.xml clean package
+
+java -jar loadtest/target/loadtest.jar "$@"
@@ -0,0 +1,55 @@
+package xyz.nickr.telegram.nowlistening.loadtest;
+
+import com.google.gson.JsonObject;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps every latency it's given, so exact percentiles can be reported at the end of a run.
+ *
+ * @author Nick Robson
+ */
+class LatencyRecorder {
+
+    private long[] nanos = new long[1024];
+    private int count;
+
+    synchronized void record(long latencyNanos) {
+        if (count == nanos.length) {
+            nanos = Arrays.copyOf(nanos, count * 2);
+        }
+        nanos[count++] = latencyNanos;
+    }
+
+    synchronized int getCount() {
+        return count;
+    }
+
+    /**
+     * @return the count and the 50th, 90th, 99th percentile and maximum latencies in milliseconds
+     */
+    JsonObject summary() {
+        long[] sorted;
+        synchronized (this) {
+            sorted = Arrays.copyOf(nanos, count);
+        }
+        Arrays.sort(sorted);
+
+        JsonObject summary = new JsonObject();
+        summary.addProperty("count", sorted.length);
+        summary.addProperty("p50", percentile(sorted, 0.50));
+        summary.addProperty("p90", percentile(sorted, 0.90));
+        summary.addProperty("p99", percentile(sorted, 0.99));
+        summary.addProperty("max", percentile(sorted, 1.00));
+        return summary;
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+}
@@ -0,0 +1,236 @@
+package xyz.nickr.telegram.nowlistening.loadtest;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import xyz.nickr.telegram.nowlistening.NowListening;
+import xyz.nickr.telegram.nowlistening.db.DatabaseController;
+import xyz.nickr.telegram.nowlistening.db.SqliteDatabaseController;
+import xyz.nickr.telegram.nowlistening.db.models.SpotifyUser;
+import xyz.nickr.telegram.nowlistening.util.ConfigUtil;
+
+/**
+ * Runs the bot against local stand-ins for Spotify and Telegram, with a
+ * database of synthetic users, and reports how well it kept up.
+ *
+ * Takes the path to a settings file, defaulting to the bundled loadtest.json.
+ * The bot's own config is the bundled default config, pointed at the
+ * stand-ins and overridden by the settings' {@code bot} section.
+ *
+ * @author Nick Robson
+ */
+public class LoadTest {
+
+    public static void main(String[] args) throws Exception {
+        JsonObject settings;
+        if (args.length > 0) {
+            try (Reader reader = Files.newBufferedReader(Paths.get(args[0]), StandardCharsets.UTF_8)) {
+                settings = NowListening.GSON.fromJson(reader, JsonObject.class);
+            }
+        } else {
+            settings = readResource("/loadtest.json");
+        }
+
+        int users = ConfigUtil.getInt(settings, "users", 1000);
+        int messagesPerUser = ConfigUtil.getInt(settings, "messages_per_user", 2);
+        long durationSeconds = ConfigUtil.getLong(settings, "duration_seconds", 300L);
+        long reportSeconds = Math.max(1, ConfigUtil.getLong(settings, "report_seconds", 10L));
+        JsonObject spotifySettings = ConfigUtil.getObject(settings, "spotify");
+        JsonObject telegramSettings = ConfigUtil.getObject(settings, "telegram");
+
+        Path directory = Files.createTempDirectory("nowlistening-loadtest");
+        JsonObject config = botConfig(settings, directory.resolve("loadtest.db"));
+
+        System.out.format("[LoadTest] Seeding %d users with %d messages each.\n", users, messagesPerUser);
+        seed(config, users, messagesPerUser);
+
+        SpotifyStandIn spotify = new SpotifyStandIn(spotifySettings);
+        TelegramStandIn telegram = new TelegramStandIn(telegramSettings, spotify);
+        spotify.start();
+        telegram.start();
+
+        NowListening.start(config);
+        long start = System.currentTimeMillis();
+        telegram.startMeasuring();
+
+        double inlineQueriesPerSecond = ConfigUtil.getDouble(telegramSettings, "inline_queries_per_second", 0);
+        long end = start + TimeUnit.SECONDS.toMillis(durationSeconds);
+        long nextReport = start + TimeUnit.SECONDS.toMillis(reportSeconds);
+        long lastRefreshes = 0;
+        long lastReport = start;
+        double inlineQueriesOwed = 0;
+        while (System.currentTimeMillis() < end) {
+            Thread.sleep(100L);
+
+            inlineQueriesOwed += inlineQueriesPerSecond / 10;
+            for (; inlineQueriesOwed >= 1; inlineQueriesOwed--) {
+                telegram.sendInlineQuery(ThreadLocalRandom.current().nextLong(1, users + 1));
+            }
+
+            long now = System.currentTimeMillis();
+            if (now >= nextReport) {
+                long refreshes = spotify.getCalls(SpotifyStandIn.CURRENTLY_PLAYING, 200);
+                System.out.format("[LoadTest] %4ds: %.1f refreshes/s, %d edits, %d timed track changes, %d inline answers\n",
+                        TimeUnit.MILLISECONDS.toSeconds(now - start),
+                        (refreshes - lastRefreshes) * 1000.0 / (now - lastReport),
+                        telegram.getCalls(TelegramStandIn.EDIT_MESSAGE_TEXT, 200),
+                        telegram.getTrackChangeToEdit().getCount(),
+                        telegram.getInlineAnswers().getCount());
+                lastRefreshes = refreshes;
+                lastReport = now;
+                nextReport += TimeUnit.SECONDS.toMillis(reportSeconds);
+            }
+        }
+
+        JsonObject result = result(settings, spotify, telegram, System.currentTimeMillis() - start);
+        String json = NowListening.GSON.toJson(result);
+        System.out.println(json);
+        Path resultFile = Paths.get(ConfigUtil.getString(settings, "result_file", "loadtest-result.json"));
+        Files.writeString(resultFile, json, StandardCharsets.UTF_8);
+        System.out.format("[LoadTest] Wrote results to %s\n", resultFile.toAbsolutePath());
+
+        // the bot's schedulers never stop on their own
+        System.exit(0);
+    }
+
+    private static JsonObject readResource(String name) throws IOException {
+        try (Reader reader = new InputStreamReader(LoadTest.class.getResourceAsStream(name), StandardCharsets.UTF_8)) {
+            return NowListening.GSON.fromJson(reader, JsonObject.class);
+        }
+    }
+
+    private static JsonObject botConfig(JsonObject settings, Path databaseFile) throws IOException {
+        JsonObject config = readResource("/config.json");
+
+        JsonObject database = ConfigUtil.getObject(config, "database");
+        database.addProperty("url", "jdbc:sqlite:" + databaseFile.toAbsolutePath());
+        database.addProperty("snapshot_file", databaseFile.resolveSibling("snapshot.json").toAbsolutePath().toString());
+
+        JsonObject spotify = ConfigUtil.getObject(config, "spotify");
+        String spotifyUrl = "http://127.0.0.1:" + ConfigUtil.getInt(ConfigUtil.getObject(settings, "spotify"), "port", 18080);
+        spotify.addProperty("client_id", "loadtest");
+        spotify.addProperty("client_secret", "loadtest");
+        spotify.addProperty("redirect_uri", "http://127.0.0.1/login");
+        spotify.addProperty("api_url", spotifyUrl);
+        spotify.addProperty("accounts_url", spotifyUrl);
+
+        JsonObject telegram = ConfigUtil.getObject(config, "telegram");
+        telegram.addProperty("api_key", "loadtest");
+        telegram.addProperty("api_url", "http://127.0.0.1:" + ConfigUtil.getInt(ConfigUtil.getObject(settings, "telegram"), "port", 18081) + "/bot");
+
+        merge(config, ConfigUtil.getObject(settings, "bot"));
+        return config;
+    }
+
+    private static void merge(JsonObject target, JsonObject overrides) {
+        for (Map.Entry<String, JsonElement> entry : overrides.entrySet()) {
+            JsonElement existing = target.get(entry.getKey());
+            if (existing != null && existing.isJsonObject() && entry.getValue().isJsonObject()) {
+                merge(existing.getAsJsonObject(), entry.getValue().getAsJsonObject());
+            } else {
+                target.add(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Creates users 1 to {@code users}, whose tokens expire over the next hour,
+     * each with {@code messagesPerUser} live messages and no playing data yet.
+     *
+     * The in-memory engine is seeded through its snapshot, which the bot then loads.
+     */
+    private static void seed(JsonObject config, int users, int messagesPerUser) throws SQLException {
+        // opening a controller creates the schema
+        DatabaseController databaseController = DatabaseController.create(config);
+        if (!(databaseController instanceof SqliteDatabaseController)) {
+            long now = Instant.now().getEpochSecond();
+            for (long id = 1; id <= users; id++) {
+                databaseController.updateSpotifyUser(SpotifyUser.builder()
+                        .telegramUserId(id)
+                        .languageCode("en")
+                        .accessToken("access-" + id)
+                        .tokenType("Bearer")
+                        .scope("user-read-currently-playing")
+                        .expiryDate(expiryDate(now, id))
+                        .refreshToken("refresh-" + id)
+                        .build());
+                for (int i = 0; i < messagesPerUser; i++) {
+                    databaseController.addNowListeningMessage(id, id + "-" + i, false);
+                }
+            }
+            databaseController.flushPlayingData();
+            return;
+        }
+
+        String url = ConfigUtil.getObject(config, "database").get("url").getAsString();
+        long now = Instant.now().getEpochSecond();
+        try (Connection connection = DriverManager.getConnection(url)) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement user = connection.prepareStatement(
+                    "INSERT INTO spotify_user (telegram_user, language_code, access_token, token_type, scope, expiry_date, refresh_token) " +
+                            "VALUES (?, 'en', ?, 'Bearer', 'user-read-currently-playing', ?, ?)");
+                 PreparedStatement message = connection.prepareStatement(
+                         "INSERT INTO now_listening_messages (telegram_user, inline_message_id, time_added, enabled, permanent) " +
+                                 "VALUES (?, ?, ?, 1, 0)")) {
+                for (long id = 1; id <= users; id++) {
+                    user.setLong(1, id);
+                    user.setString(2, "access-" + id);
+                    user.setLong(3, expiryDate(now, id));
+                    user.setString(4, "refresh-" + id);
+                    user.addBatch();
+
+                    for (int i = 0; i < messagesPerUser; i++) {
+                        message.setLong(1, id);
+                        message.setString(2, id + "-" + i);
+                        message.setLong(3, now);
+                        message.addBatch();
+                    }
+
+                    if (id % 1000 == 0) {
+                        user.executeBatch();
+                        message.executeBatch();
+                    }
+                }
+                user.executeBatch();
+                message.executeBatch();
+            }
+            connection.commit();
+        }
+    }
+
+    private static long expiryDate(long now, long telegramUserId) {
+        return now + 60 + Math.floorMod(telegramUserId * 7919, 3540);
+    }
+
+    private static JsonObject result(JsonObject settings, SpotifyStandIn spotify, TelegramStandIn telegram, long elapsedMillis) {
+        JsonObject calls = new JsonObject();
+        calls.add("spotify", NowListening.GSON.toJsonTree(spotify.getCalls()));
+        calls.add("telegram", NowListening.GSON.toJsonTree(telegram.getCalls()));
+
+        JsonObject result = new JsonObject();
+        result.addProperty("users", ConfigUtil.getInt(settings, "users", 1000));
+        result.addProperty("messages_per_user", ConfigUtil.getInt(settings, "messages_per_user", 2));
+        result.addProperty("elapsed_seconds", elapsedMillis / 1000.0);
+        result.addProperty("refreshes_per_second",
+                spotify.getCalls(SpotifyStandIn.CURRENTLY_PLAYING, 200) * 1000.0 / Math.max(1, elapsedMillis));
+        result.add("track_change_to_edit_millis", telegram.getTrackChangeToEdit().summary());
+        result.add("inline_answer_millis", telegram.getInlineAnswers().summary());
+        result.add("calls", calls);
+        return result;
+    }
+
+}
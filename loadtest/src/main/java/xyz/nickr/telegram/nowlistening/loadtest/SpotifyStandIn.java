@@ -0,0 +1,177 @@
+package xyz.nickr.telegram.nowlistening.loadtest;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.glassfish.grizzly.http.Method;
+import org.glassfish.grizzly.http.server.Request;
+import org.glassfish.grizzly.http.server.Response;
+import xyz.nickr.telegram.nowlistening.util.ConfigUtil;
+
+/**
+ * Stands in for the Spotify Web API's currently playing endpoint and the accounts service's token endpoint.
+ *
+ * Every user plays back-to-back tracks of the same length, each starting at
+ * an offset of their own, so the time each track started is always known.
+ * Some users are instead always paused, or never playing anything.
+ *
+ * @author Nick Robson
+ */
+class SpotifyStandIn extends StandIn {
+
+    static final String CURRENTLY_PLAYING = "currently-playing";
+    static final String TOKEN = "token";
+
+    private final long trackMillis;
+    private final int pausedPercent;
+    private final int idlePercent;
+    private final AtomicLong tokensIssued = new AtomicLong();
+
+    SpotifyStandIn(JsonObject settings) {
+        super("SpotifyStandIn", settings);
+        this.trackMillis = TimeUnit.SECONDS.toMillis(Math.max(1, ConfigUtil.getLong(settings, "track_seconds", 180L)));
+        this.pausedPercent = (int) Math.round(100 * ConfigUtil.getDouble(settings, "paused_fraction", 0.1));
+        this.idlePercent = (int) Math.round(100 * ConfigUtil.getDouble(settings, "idle_fraction", 0.1));
+    }
+
+    private static long mix(long telegramUserId) {
+        long mixed = telegramUserId * 0x9E3779B97F4A7C15L;
+        return (mixed ^ (mixed >>> 32)) & Long.MAX_VALUE;
+    }
+
+    boolean isPaused(long telegramUserId) {
+        return mix(telegramUserId) % 100 < pausedPercent;
+    }
+
+    boolean isIdle(long telegramUserId) {
+        long bucket = mix(telegramUserId) % 100;
+        return bucket >= pausedPercent && bucket < pausedPercent + idlePercent;
+    }
+
+    private long offset(long telegramUserId) {
+        return mix(telegramUserId) % trackMillis;
+    }
+
+    long trackIndex(long telegramUserId, long nowMillis) {
+        return Math.floorDiv(nowMillis + offset(telegramUserId), trackMillis);
+    }
+
+    /**
+     * @return when the user's current track started, or -1 if it never changes
+     */
+    long trackStartedAt(long telegramUserId, long nowMillis) {
+        if (isPaused(telegramUserId) || isIdle(telegramUserId)) {
+            return -1;
+        }
+        return trackIndex(telegramUserId, nowMillis) * trackMillis - offset(telegramUserId);
+    }
+
+    static String trackName(long trackIndex) {
+        return "Track " + trackIndex;
+    }
+
+    @Override
+    protected void handle(Request request, Response response) {
+        String path = request.getRequestURI();
+        if (request.getMethod() == Method.GET && path.endsWith("/me/player/currently-playing")) {
+            long telegramUserId = userFromToken(request.getHeader("Authorization"));
+            respond(response, CURRENTLY_PLAYING, true, () -> currentlyPlaying(telegramUserId));
+        } else if (request.getMethod() == Method.POST && path.equals("/api/token")) {
+            long telegramUserId = userFromToken(request.getParameter("refresh_token"));
+            respond(response, TOKEN, true, () -> token(telegramUserId));
+        } else {
+            respond(response, "unknown", false, () -> Reply.json(404, error(404, "Service not found")));
+        }
+    }
+
+    /**
+     * Tokens are issued as {@code <kind>-<telegram user id>[-<n>]}.
+     */
+    private static long userFromToken(String token) {
+        if (token == null) {
+            return 0;
+        }
+        String[] parts = token.replace("Bearer ", "").split("-");
+        try {
+            return parts.length > 1 ? Long.parseLong(parts[1]) : 0;
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    private Reply currentlyPlaying(long telegramUserId) {
+        if (telegramUserId == 0) {
+            return Reply.json(401, error(401, "Invalid access token"));
+        }
+        if (isIdle(telegramUserId)) {
+            return new Reply(204, null, Map.of(), 0);
+        }
+
+        long now = System.currentTimeMillis();
+        // paused users are stuck on their first track
+        long trackIndex = trackIndex(telegramUserId, isPaused(telegramUserId) ? 0 : now);
+        long progress = Math.floorMod(now + offset(telegramUserId), trackMillis);
+
+        JsonObject artist = new JsonObject();
+        artist.addProperty("name", "Artist " + telegramUserId % 50);
+        artist.addProperty("type", "artist");
+        JsonArray artists = new JsonArray();
+        artists.add(artist);
+
+        JsonObject externalUrls = new JsonObject();
+        externalUrls.addProperty("spotify", "https://open.spotify.com/track/" + trackIndex);
+
+        JsonObject item = new JsonObject();
+        item.addProperty("name", trackName(trackIndex));
+        item.add("artists", artists);
+        item.add("external_urls", externalUrls);
+        item.addProperty("duration_ms", trackMillis);
+        item.addProperty("id", Long.toString(trackIndex));
+        item.addProperty("type", "track");
+
+        JsonObject body = new JsonObject();
+        body.addProperty("timestamp", now);
+        body.addProperty("progress_ms", progress);
+        body.addProperty("is_playing", !isPaused(telegramUserId));
+        body.addProperty("currently_playing_type", "track");
+        body.add("item", item);
+        return Reply.json(200, body);
+    }
+
+    private Reply token(long telegramUserId) {
+        if (telegramUserId == 0) {
+            JsonObject body = new JsonObject();
+            body.addProperty("error", "invalid_grant");
+            body.addProperty("error_description", "Invalid refresh token");
+            return Reply.json(400, body);
+        }
+        JsonObject body = new JsonObject();
+        body.addProperty("access_token", "access-" + telegramUserId + "-" + tokensIssued.incrementAndGet());
+        body.addProperty("token_type", "Bearer");
+        body.addProperty("scope", "user-read-currently-playing user-read-playback-state");
+        body.addProperty("expires_in", 3600);
+        return Reply.json(200, body);
+    }
+
+    private static JsonObject error(int status, String message) {
+        JsonObject error = new JsonObject();
+        error.addProperty("status", status);
+        error.addProperty("message", message);
+        JsonObject body = new JsonObject();
+        body.add("error", error);
+        return body;
+    }
+
+    @Override
+    protected Reply rateLimited() {
+        return new Reply(429, error(429, "API rate limit exceeded").toString(), Map.of("Retry-After", "1"), 0);
+    }
+
+    @Override
+    protected Reply failed() {
+        return Reply.json(502, error(502, "Bad gateway."));
+    }
+
+}
@@ -0,0 +1,142 @@
+package xyz.nickr.telegram.nowlistening.loadtest;
+
+import com.google.gson.JsonObject;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import lombok.AllArgsConstructor;
+import org.glassfish.grizzly.http.server.HttpHandler;
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.grizzly.http.server.Request;
+import org.glassfish.grizzly.http.server.Response;
+import xyz.nickr.telegram.nowlistening.util.ConfigUtil;
+import xyz.nickr.telegram.nowlistening.util.NamedThreadFactory;
+import xyz.nickr.telegram.nowlistening.util.TokenBucket;
+
+/**
+ * A local HTTP server standing in for one of the APIs the bot talks to.
+ *
+ * Replies are delayed by the configured latency without holding on to
+ * a worker thread, a fraction of requests fail at random, and requests
+ * over the configured rate are refused the way the real API would.
+ *
+ * @author Nick Robson
+ */
+abstract class StandIn {
+
+    private final HttpServer server;
+    private final ScheduledExecutorService responder;
+    private final long latencyMillis;
+    private final long latencyJitterMillis;
+    private final double errorRate;
+    private final TokenBucket rateLimit;
+    private final Map<String, LongAdder> calls = new ConcurrentSkipListMap<>();
+
+    StandIn(String name, JsonObject settings) {
+        int port = ConfigUtil.getInt(settings, "port", 0);
+        double requestsPerSecond = ConfigUtil.getDouble(settings, "requests_per_second", 0);
+
+        this.latencyMillis = ConfigUtil.getLong(settings, "latency_millis", 0L);
+        this.latencyJitterMillis = ConfigUtil.getLong(settings, "latency_jitter_millis", 0L);
+        this.errorRate = ConfigUtil.getDouble(settings, "error_rate", 0);
+        this.rateLimit = requestsPerSecond > 0 ? new TokenBucket(Math.max(1, requestsPerSecond), requestsPerSecond) : null;
+        this.responder = Executors.newScheduledThreadPool(2, new NamedThreadFactory(name));
+
+        this.server = HttpServer.createSimpleServer(null, "127.0.0.1", port);
+        this.server.getServerConfiguration().addHttpHandler(new HttpHandler() {
+            @Override
+            public void service(Request request, Response response) throws Exception {
+                handle(request, response);
+            }
+        }, "/");
+    }
+
+    void start() throws IOException {
+        server.start();
+    }
+
+    /**
+     * @return how many calls were made, keyed by endpoint and status
+     */
+    Map<String, Long> getCalls() {
+        Map<String, Long> snapshot = new ConcurrentSkipListMap<>();
+        calls.forEach((key, count) -> snapshot.put(key, count.sum()));
+        return snapshot;
+    }
+
+    long getCalls(String endpoint, int status) {
+        LongAdder count = calls.get(endpoint + " " + status);
+        return count != null ? count.sum() : 0;
+    }
+
+    protected abstract void handle(Request request, Response response) throws Exception;
+
+    /**
+     * @return the reply to a request refused for going over the rate limit
+     */
+    protected abstract Reply rateLimited();
+
+    /**
+     * @return the reply to a request that failed at random
+     */
+    protected abstract Reply failed();
+
+    /**
+     * Replies to a request after the configured latency, unless it's rate
+     * limited or chosen to fail. The reply is only built if neither happens,
+     * so it's safe for it to have side effects.
+     */
+    protected void respond(Response response, String endpoint, boolean limited, Supplier<Reply> reply) {
+        Reply chosen;
+        if (limited && rateLimit != null && rateLimit.tryAcquire() > 0) {
+            chosen = rateLimited();
+        } else if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+            chosen = failed();
+        } else {
+            chosen = reply.get();
+        }
+        calls.computeIfAbsent(endpoint + " " + chosen.status, key -> new LongAdder()).increment();
+
+        long delay = latencyMillis + chosen.extraDelayMillis;
+        if (latencyJitterMillis > 0) {
+            delay += ThreadLocalRandom.current().nextLong(latencyJitterMillis + 1);
+        }
+
+        response.suspend();
+        responder.schedule(() -> {
+            try {
+                response.setStatus(chosen.status);
+                chosen.headers.forEach(response::setHeader);
+                if (chosen.body != null) {
+                    response.setContentType("application/json");
+                    response.getWriter().write(chosen.body);
+                }
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            } finally {
+                response.resume();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    @AllArgsConstructor
+    protected static class Reply {
+
+        private final int status;
+        private final String body;
+        private final Map<String, String> headers;
+        private final long extraDelayMillis;
+
+        static Reply json(int status, JsonObject body) {
+            return new Reply(status, body.toString(), Map.of(), 0);
+        }
+
+    }
+
+}
@@ -0,0 +1,212 @@
+package xyz.nickr.telegram.nowlistening.loadtest;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.glassfish.grizzly.http.server.Request;
+import org.glassfish.grizzly.http.server.Response;
+import xyz.nickr.telegram.nowlistening.util.ConfigUtil;
+
+/**
+ * Stands in for the Telegram Bot API.
+ *
+ * Serves synthetic inline queries through getUpdates and answers everything
+ * else successfully. Edits to now listening messages are checked against
+ * the {@link SpotifyStandIn} to time how long after a track change the edit
+ * for it arrived.
+ *
+ * @author Nick Robson
+ */
+class TelegramStandIn extends StandIn {
+
+    static final String EDIT_MESSAGE_TEXT = "editMessageText";
+    static final String ANSWER_INLINE_QUERY = "answerInlineQuery";
+
+    private static final int MAX_UPDATES = 100;
+
+    private final SpotifyStandIn spotify;
+    private final long maxPollMillis;
+    private final LatencyRecorder trackChangeToEdit = new LatencyRecorder();
+    private final LatencyRecorder inlineAnswers = new LatencyRecorder();
+
+    private final Deque<JsonObject> pendingUpdates = new ArrayDeque<>();
+    private final Map<String, Long> inlineQueriesSent = new ConcurrentHashMap<>();
+    private final Map<String, Long> editedTrackStarts = new ConcurrentHashMap<>();
+    private long nextUpdateId = 1;
+    private volatile long measureFrom = Long.MAX_VALUE;
+
+    TelegramStandIn(JsonObject settings, SpotifyStandIn spotify) {
+        super("TelegramStandIn", settings);
+        this.spotify = spotify;
+        this.maxPollMillis = ConfigUtil.getLong(settings, "max_poll_millis", 500L);
+    }
+
+    LatencyRecorder getTrackChangeToEdit() {
+        return trackChangeToEdit;
+    }
+
+    LatencyRecorder getInlineAnswers() {
+        return inlineAnswers;
+    }
+
+    /**
+     * Only track changes from now on are timed, so the backlog from before the bot started doesn't count.
+     */
+    void startMeasuring() {
+        measureFrom = System.currentTimeMillis();
+    }
+
+    /**
+     * Queues an inline query from the user, to be picked up by the bot's next getUpdates.
+     */
+    void sendInlineQuery(long telegramUserId) {
+        JsonObject from = new JsonObject();
+        from.addProperty("id", telegramUserId);
+        from.addProperty("is_bot", false);
+        from.addProperty("first_name", "User " + telegramUserId);
+        from.addProperty("language_code", "en");
+
+        synchronized (pendingUpdates) {
+            long updateId = nextUpdateId++;
+            String queryId = "query-" + updateId;
+
+            JsonObject inlineQuery = new JsonObject();
+            inlineQuery.addProperty("id", queryId);
+            inlineQuery.add("from", from);
+            inlineQuery.addProperty("query", "");
+            inlineQuery.addProperty("offset", "");
+
+            JsonObject update = new JsonObject();
+            update.addProperty("update_id", updateId);
+            update.add("inline_query", inlineQuery);
+
+            inlineQueriesSent.put(queryId, System.nanoTime());
+            pendingUpdates.addLast(update);
+        }
+    }
+
+    @Override
+    protected void handle(Request request, Response response) {
+        String path = request.getRequestURI();
+        String method = path.substring(path.lastIndexOf('/') + 1);
+        switch (method) {
+            case "getMe" -> respond(response, method, false, this::getMe);
+            case "getUpdates" -> {
+                long offset = parseLong(request.getParameter("offset"), 0);
+                respond(response, method, false, () -> getUpdates(offset));
+            }
+            case EDIT_MESSAGE_TEXT -> {
+                String inlineMessageId = request.getParameter("inline_message_id");
+                String text = request.getParameter("text");
+                respond(response, method, true, () -> editMessageText(inlineMessageId, text));
+            }
+            case ANSWER_INLINE_QUERY -> {
+                String queryId = request.getParameter("inline_query_id");
+                respond(response, method, true, () -> answerInlineQuery(queryId));
+            }
+            default -> respond(response, method, true, () -> ok(new JsonPrimitive(true)));
+        }
+    }
+
+    private static long parseLong(String value, long defaultValue) {
+        try {
+            return value != null ? Long.parseLong(value) : defaultValue;
+        } catch (NumberFormatException ex) {
+            return defaultValue;
+        }
+    }
+
+    private Reply getMe() {
+        JsonObject user = new JsonObject();
+        user.addProperty("id", 1);
+        user.addProperty("is_bot", true);
+        user.addProperty("first_name", "Load Test");
+        user.addProperty("username", "loadtest_bot");
+        return ok(user);
+    }
+
+    private Reply getUpdates(long offset) {
+        JsonArray updates = new JsonArray();
+        synchronized (pendingUpdates) {
+            // updates below the offset have been confirmed
+            while (!pendingUpdates.isEmpty() && pendingUpdates.peekFirst().get("update_id").getAsLong() < offset) {
+                pendingUpdates.removeFirst();
+            }
+            for (JsonObject update : pendingUpdates) {
+                if (updates.size() == MAX_UPDATES) {
+                    break;
+                }
+                updates.add(update);
+            }
+        }
+        // hold empty polls open for a while, as Telegram would, rather than letting the bot spin
+        long extraDelay = updates.size() == 0 ? maxPollMillis : 0;
+        JsonObject body = new JsonObject();
+        body.addProperty("ok", true);
+        body.add("result", updates);
+        return new Reply(200, body.toString(), Map.of(), extraDelay);
+    }
+
+    private Reply editMessageText(String inlineMessageId, String text) {
+        if (inlineMessageId == null || text == null) {
+            return Reply.json(400, error(400, "Bad Request: message text is empty"));
+        }
+
+        // seeded messages have ids of the form <telegram user id>-<n>
+        long telegramUserId = parseLong(inlineMessageId.substring(0, Math.max(0, inlineMessageId.indexOf('-'))), 0);
+        long now = System.currentTimeMillis();
+        long trackStartedAt = spotify.trackStartedAt(telegramUserId, now);
+        if (trackStartedAt >= measureFrom
+                && text.contains(SpotifyStandIn.trackName(spotify.trackIndex(telegramUserId, now)))) {
+            Long previous = editedTrackStarts.put(inlineMessageId, trackStartedAt);
+            if (previous == null || previous != trackStartedAt) {
+                trackChangeToEdit.record(TimeUnit.MILLISECONDS.toNanos(now - trackStartedAt));
+            }
+        }
+        return ok(new JsonPrimitive(true));
+    }
+
+    private Reply answerInlineQuery(String queryId) {
+        Long sentAt = queryId != null ? inlineQueriesSent.remove(queryId) : null;
+        if (sentAt != null) {
+            inlineAnswers.record(System.nanoTime() - sentAt);
+        }
+        return ok(new JsonPrimitive(true));
+    }
+
+    private static Reply ok(JsonElement result) {
+        JsonObject body = new JsonObject();
+        body.addProperty("ok", true);
+        body.add("result", result);
+        return Reply.json(200, body);
+    }
+
+    private static JsonObject error(int errorCode, String description) {
+        JsonObject body = new JsonObject();
+        body.addProperty("ok", false);
+        body.addProperty("error_code", errorCode);
+        body.addProperty("description", description);
+        return body;
+    }
+
+    @Override
+    protected Reply rateLimited() {
+        JsonObject parameters = new JsonObject();
+        parameters.addProperty("retry_after", 1);
+        JsonObject body = error(429, "Too Many Requests: retry after 1");
+        body.add("parameters", parameters);
+        return Reply.json(429, body);
+    }
+
+    @Override
+    protected Reply failed() {
+        return Reply.json(500, error(500, "Internal Server Error"));
+    }
+
+}
@@ -27,14 +27,50 @@ public class TextBuilder {
     protected TextBuilder() {
     }
 
-    private String htmlEscaped(String text) {
-        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    /**
+     * Escapes the characters that are special in Telegram's HTML
+     * in a single pass, returning the input itself if none are present.
+     */
+    public static String htmlEscaped(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '&' || c == '<' || c == '>') {
+                StringBuilder builder = new StringBuilder(text.length() + 16);
+                builder.append(text, 0, i);
+                appendEscaped(builder, text, i);
+                return builder.toString();
+            }
+        }
+        return text;
+    }
+
+    /**
+     * Appends the escaped form of the text to the builder.
+     */
+    public static StringBuilder appendEscaped(StringBuilder builder, String text) {
+        return appendEscaped(builder, text, 0);
+    }
+
+    private static StringBuilder appendEscaped(StringBuilder builder, String text, int from) {
+        int start = from;
+        for (int i = from; i < text.length(); i++) {
+            String replacement;
+            switch (text.charAt(i)) {
+                case '&': replacement = "&amp;"; break;
+                case '<': replacement = "&lt;"; break;
+                case '>': replacement = "&gt;"; break;
+                default: continue;
+            }
+            builder.append(text, start, i).append(replacement);
+            start = i + 1;
+        }
+        return builder.append(text, start, text.length());
     }
 
-    private TextBuilder element(String e, String content) {
-        // for the closing element, split(" ")[0] is used in case of parameters
-        // that are used like linking
-        message.append("<").append(e).append(">").append(htmlEscaped(content)).append("</").append(e.split(" ")[0]).append(">");
+    private TextBuilder element(String open, String close, String content) {
+        message.append('<').append(open).append('>');
+        appendEscaped(message, content);
+        message.append("</").append(close).append('>');
         return this;
     }
 
@@ -43,7 +79,8 @@ public class TextBuilder {
     }
 
     public TextBuilder escaped(String text) {
-        return html(htmlEscaped(text));
+        appendEscaped(message, text);
+        return this;
     }
 
     public TextBuilder html(String html) {
@@ -52,23 +89,23 @@ public class TextBuilder {
     }
 
     public TextBuilder bold(String text) {
-        return element("b", text);
+        return element("b", "b", text);
     }
 
     public TextBuilder italics(String text) {
-        return element("i", text);
+        return element("i", "i", text);
     }
 
     public TextBuilder link(String text, String link) {
-        return element("a href=\"" + link + "\"", text);
+        return element("a href=\"" + link + "\"", "a", text);
     }
 
     public TextBuilder code(String text) {
-        return element("code", text);
+        return element("code", "code", text);
     }
 
     public TextBuilder preformatted(String text) {
-        return element("pre", text);
+        return element("pre", "pre", text);
     }
 
     public TextBuilder space() {
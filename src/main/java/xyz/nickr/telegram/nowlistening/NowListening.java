@@ -15,15 +15,22 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import xyz.nickr.telegram.nowlistening.db.DatabaseController;
+import xyz.nickr.telegram.nowlistening.scheduler.ActiveAudience;
 import xyz.nickr.telegram.nowlistening.scheduler.AuthorisationRefresher;
 import xyz.nickr.telegram.nowlistening.scheduler.MessageDisabler;
+import xyz.nickr.telegram.nowlistening.scheduler.MessageExpiry;
+import xyz.nickr.telegram.nowlistening.scheduler.PlayingDataFlusher;
 import xyz.nickr.telegram.nowlistening.scheduler.PlayingTrackRefresher;
+import xyz.nickr.telegram.nowlistening.scheduler.PollScheduler;
+import xyz.nickr.telegram.nowlistening.scheduler.ShardCoordinator;
 import xyz.nickr.telegram.nowlistening.spotify.SpotifyController;
 import xyz.nickr.telegram.nowlistening.telegram.TelegramController;
+import xyz.nickr.telegram.nowlistening.util.ConfigUtil;
 import xyz.nickr.telegram.nowlistening.web.WebController;
 
 public class NowListening {
@@ -61,21 +68,7 @@ public class NowListening {
             throw new UncheckedIOException("Failed to read config from " + configJson.toString(), ex);
         }
 
-        DatabaseController databaseController = new DatabaseController(config);
-        SpotifyController spotifyController = new SpotifyController(config, databaseController);
-        TelegramController telegramController = new TelegramController(config, databaseController, spotifyController);
-        WebController webController = new WebController(config, databaseController, spotifyController, telegramController);
-
-        webController.start();
-        telegramController.start(() -> {
-            EXECUTOR.scheduleWithFixedDelay(new AuthorisationRefresher(databaseController, spotifyController), 0L, 30L, TimeUnit.SECONDS);
-            EXECUTOR.scheduleWithFixedDelay(new PlayingTrackRefresher(databaseController, spotifyController), 0L, 15L, TimeUnit.SECONDS);
-            EXECUTOR.scheduleWithFixedDelay(new MessageDisabler(telegramController), 0L, 1L, TimeUnit.MINUTES);
-        });
-
-        Runtime.getRuntime().addShutdownHook(new Thread(
-                webController::shutdown,
-                "NowListening Shutdown Thread"));
+        start(config);
 
         while (true) {
             try {
@@ -86,4 +79,67 @@ public class NowListening {
         }
     }
 
+    /**
+     * Wires up and starts the bot, returning once it's logged in to Telegram and its jobs are scheduled.
+     */
+    public static void start(JsonObject config) throws IOException {
+        DatabaseController databaseController = DatabaseController.create(config);
+        SpotifyController spotifyController = new SpotifyController(config, databaseController);
+        ActiveAudience activeAudience = new ActiveAudience(config, databaseController);
+        ShardCoordinator shardCoordinator = new ShardCoordinator(config, databaseController);
+        TelegramController telegramController = new TelegramController(config, databaseController, spotifyController, activeAudience, shardCoordinator);
+        WebController webController = new WebController(config, databaseController, spotifyController, telegramController);
+
+        long flushIntervalSeconds = ConfigUtil.getLong(ConfigUtil.getObject(config, "database"), "flush_interval_seconds", 10L);
+        PlayingTrackRefresher playingTrackRefresher = new PlayingTrackRefresher(config, databaseController, spotifyController, activeAudience, shardCoordinator);
+
+        // claim shards before anything starts deciding which users are ours
+        shardCoordinator.run();
+
+        webController.start();
+        telegramController.start(() -> {
+            if (shardCoordinator.isEnabled()) {
+                shardCoordinator.addHeartbeatListener((changedUsers, shardsGained) -> activeAudience.reload(changedUsers));
+                EXECUTOR.scheduleWithFixedDelay(shardCoordinator, shardCoordinator.getHeartbeatSeconds(), shardCoordinator.getHeartbeatSeconds(), TimeUnit.SECONDS);
+            }
+            AuthorisationRefresher authorisationRefresher = new AuthorisationRefresher(config, databaseController, spotifyController, activeAudience, shardCoordinator);
+            EXECUTOR.scheduleWithFixedDelay(authorisationRefresher, 0L, authorisationRefresher.getCheckIntervalSeconds(), TimeUnit.SECONDS);
+            if (PollScheduler.isEnabled(config)) {
+                PollScheduler pollScheduler = new PollScheduler(config, databaseController, playingTrackRefresher, activeAudience, shardCoordinator);
+                activeAudience.addJoinListener(pollScheduler::pollSoon);
+                shardCoordinator.addHeartbeatListener((changedUsers, shardsGained) -> pollScheduler.syncSoon());
+                EXECUTOR.scheduleWithFixedDelay(pollScheduler, 0L, pollScheduler.getTickMillis(), TimeUnit.MILLISECONDS);
+            } else {
+                EXECUTOR.scheduleWithFixedDelay(playingTrackRefresher, 0L, 15L, TimeUnit.SECONDS);
+            }
+            MessageExpiry messageExpiry = new MessageExpiry(databaseController, telegramController, activeAudience, shardCoordinator);
+            try {
+                messageExpiry.start();
+            } catch (SQLException ex) {
+                throw new RuntimeException("Failed to load expiring messages", ex);
+            }
+            shardCoordinator.addHeartbeatListener((changedUsers, shardsGained) -> {
+                try {
+                    // users new to this node may have messages enabled long ago, so only a full reload finds them
+                    if (shardsGained || changedUsers.isEmpty()) {
+                        messageExpiry.reload();
+                    } else {
+                        messageExpiry.reload(changedUsers.get());
+                    }
+                } catch (SQLException ex) {
+                    ex.printStackTrace();
+                }
+            });
+            long reconcileMinutes = ConfigUtil.getLong(ConfigUtil.getObject(config, "scheduler"), "message_reconcile_minutes", 60L);
+            EXECUTOR.scheduleWithFixedDelay(new MessageDisabler(telegramController, activeAudience), reconcileMinutes, reconcileMinutes, TimeUnit.MINUTES);
+            EXECUTOR.scheduleWithFixedDelay(new PlayingDataFlusher(databaseController), flushIntervalSeconds, flushIntervalSeconds, TimeUnit.SECONDS);
+        });
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            webController.shutdown();
+            new PlayingDataFlusher(databaseController).run();
+            shardCoordinator.shutdown();
+        }, "NowListening Shutdown Thread"));
+    }
+
 }
@@ -0,0 +1,563 @@
+package xyz.nickr.telegram.nowlistening.db;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import lombok.AllArgsConstructor;
+import xyz.nickr.telegram.nowlistening.db.models.NowListeningMessage;
+import xyz.nickr.telegram.nowlistening.db.models.SpotifyPlayingData;
+import xyz.nickr.telegram.nowlistening.db.models.SpotifyUser;
+import xyz.nickr.telegram.nowlistening.db.models.UserSnapshot;
+import xyz.nickr.telegram.nowlistening.util.ConfigUtil;
+
+/**
+ * Keeps everything in concurrent maps, for benchmarks and small deployments
+ * where SQLite's I/O is pure overhead.
+ *
+ * If {@code database.snapshot_file} is set, the data is loaded from it on
+ * startup and written back to it whenever playing data is flushed and
+ * anything has changed since the last snapshot. Anything changed after the
+ * last snapshot is lost if the bot dies.
+ *
+ * @author Nick Robson
+ */
+public class InMemoryDatabaseController implements DatabaseController {
+
+    private static final Gson GSON = new Gson();
+
+    private final Path snapshotFile;
+    private final List<MessageEnabledListener> messageListeners = new CopyOnWriteArrayList<>();
+
+    private final Map<UUID, Long> uuidUsers = new ConcurrentHashMap<>();
+    private final Map<Long, UUID> userUuids = new ConcurrentHashMap<>();
+    private final SpotifyUserCache spotifyUsers = new SpotifyUserCache();
+    private final Map<Long, SpotifyPlayingData> playingData = new ConcurrentHashMap<>();
+    private final AtomicInteger changedPlayingData = new AtomicInteger();
+
+    // messages are changed as a group, e.g. by the disable pass, so they share a lock
+    private final Map<String, StoredMessage> messages = new HashMap<>();
+    private final Map<Long, Set<String>> messagesByUser = new HashMap<>();
+    private final AtomicLong nextMessageId = new AtomicLong(1);
+
+    // bumped on every change, so a snapshot is only written when there's something new
+    private final AtomicLong version = new AtomicLong();
+    private long snapshotVersion;
+
+    // nothing else can see this process's memory, so leases only matter to nodes in the same JVM and aren't snapshotted
+    private final Map<String, Long> shardNodes = new HashMap<>();
+    private final Map<Integer, ShardLease> shardLeases = new HashMap<>();
+
+    public InMemoryDatabaseController(JsonObject config) {
+        String snapshotPath = ConfigUtil.getString(ConfigUtil.getObject(config, "database"), "snapshot_file", "");
+        this.snapshotFile = snapshotPath.isEmpty() ? null : Paths.get(snapshotPath);
+
+        if (snapshotFile != null && Files.exists(snapshotFile)) {
+            try {
+                loadSnapshot();
+            } catch (IOException | JsonParseException ex) {
+                throw new RuntimeException("Failed to load the database snapshot from " + snapshotFile, ex);
+            }
+        }
+    }
+
+    @AllArgsConstructor
+    private static class StoredMessage {
+
+        private final long id;
+        private final long telegramUserId;
+        private final String inlineMessageId;
+        private final long timeAdded;
+        private final boolean enabled;
+        private final boolean permanent;
+
+        NowListeningMessage toMessage() {
+            return new NowListeningMessage(id, telegramUserId, inlineMessageId, timeAdded, enabled);
+        }
+
+    }
+
+    @AllArgsConstructor
+    private static class ShardLease {
+
+        private final String nodeId;
+        private final long expiresAt;
+
+    }
+
+    private static class Snapshot {
+
+        private Map<String, Long> uuids = new HashMap<>();
+        private List<SpotifyUser> users = new ArrayList<>();
+        private List<SpotifyPlayingData> playingData = new ArrayList<>();
+        private List<StoredMessage> messages = new ArrayList<>();
+
+    }
+
+    private void changed() {
+        version.incrementAndGet();
+    }
+
+    @Override
+    public void addMessageListener(MessageEnabledListener listener) {
+        messageListeners.add(Objects.requireNonNull(listener, "listener can't be null"));
+    }
+
+    private void messageEnabled(long telegramUserId, String inlineMessageId, long timeAdded, boolean permanent) {
+        messageListeners.forEach(listener -> {
+            try {
+                listener.onMessageEnabled(telegramUserId, inlineMessageId, timeAdded, permanent);
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        });
+    }
+
+    @Override
+    public Optional<Long> getTelegramUserId(UUID uuid) throws SQLException {
+        return Optional.ofNullable(uuidUsers.get(uuid));
+    }
+
+    @Override
+    public UUID getUUID(long telegramUserId) throws SQLException {
+        return userUuids.computeIfAbsent(telegramUserId, id -> {
+            UUID uuid;
+            do {
+                uuid = UUID.randomUUID();
+            } while (uuidUsers.putIfAbsent(uuid, id) != null);
+            changed();
+            return uuid;
+        });
+    }
+
+    @Override
+    public void deleteUUID(UUID uuid) throws SQLException {
+        Long telegramUserId = uuidUsers.remove(uuid);
+        if (telegramUserId != null) {
+            userUuids.remove(telegramUserId, uuid);
+            changed();
+        }
+    }
+
+    @Override
+    public Optional<SpotifyUser> getSpotifyUser(long telegramUserId) throws SQLException {
+        return spotifyUsers.get(telegramUserId);
+    }
+
+    @Override
+    public void updateSpotifyUser(SpotifyUser user) throws SQLException {
+        spotifyUsers.put(user);
+        changed();
+    }
+
+    @Override
+    public boolean updateSpotifyTokens(SpotifyUser user) throws SQLException {
+        if (!spotifyUsers.updateTokens(user)) {
+            return false;
+        }
+        changed();
+        return true;
+    }
+
+    @Override
+    public void updateLanguageCode(long telegramUserId, String languageCode) throws SQLException {
+        if (spotifyUsers.updateLanguageCode(telegramUserId, languageCode)) {
+            changed();
+        }
+    }
+
+    @Override
+    public void deleteSpotifyUser(long telegramUserId) throws SQLException {
+        spotifyUsers.remove(telegramUserId);
+        changed();
+    }
+
+    @Override
+    public Set<SpotifyUser> getUsersRequiringReauthorisation() throws SQLException {
+        return getUsersExpiringBefore(Instant.now().getEpochSecond());
+    }
+
+    @Override
+    public Set<SpotifyUser> getUsersExpiringBefore(long epochSecond) throws SQLException {
+        return Collections.unmodifiableSet(spotifyUsers.expiringBefore(epochSecond));
+    }
+
+    @Override
+    public Set<SpotifyUser> getUsersWithValidAccess() throws SQLException {
+        return Collections.unmodifiableSet(spotifyUsers.validAfter(Instant.now().getEpochSecond()));
+    }
+
+    @Override
+    public Set<Long> getAllUserIds() throws SQLException {
+        return Collections.unmodifiableSet(spotifyUsers.userIds());
+    }
+
+    @Override
+    public List<UserSnapshot> getRefreshSnapshot() throws SQLException {
+        Set<SpotifyUser> users = spotifyUsers.validAfter(Instant.now().getEpochSecond());
+        List<UserSnapshot> snapshots = new ArrayList<>(users.size());
+        synchronized (messages) {
+            for (SpotifyUser user : users) {
+                long telegramUserId = user.getTelegramUserId();
+                snapshots.add(new UserSnapshot(
+                        user,
+                        playingData.get(telegramUserId),
+                        messagesOf(telegramUserId, message -> message.enabled)));
+            }
+        }
+        return snapshots;
+    }
+
+    @Override
+    public Optional<SpotifyPlayingData> getPlayingData(long telegramUserId) throws SQLException {
+        return Optional.ofNullable(playingData.get(telegramUserId));
+    }
+
+    @Override
+    public void updatePlayingData(SpotifyPlayingData newPlayingData) throws SQLException {
+        SpotifyPlayingData old = playingData.put(newPlayingData.getTelegramUserId(), newPlayingData);
+        if (old == null || !old.equals(newPlayingData) || !Objects.equals(old.getLastTrackUrl(), newPlayingData.getLastTrackUrl())) {
+            changedPlayingData.incrementAndGet();
+            changed();
+        }
+    }
+
+    @Override
+    public int flushPlayingData() throws SQLException {
+        int changed = changedPlayingData.getAndSet(0);
+        if (snapshotFile != null) {
+            try {
+                writeSnapshot();
+            } catch (IOException ex) {
+                changedPlayingData.addAndGet(changed);
+                throw new SQLException("Failed to write the database snapshot to " + snapshotFile, ex);
+            }
+        }
+        return changed;
+    }
+
+    @Override
+    public void deletePlayingData(long telegramUserId) throws SQLException {
+        if (playingData.remove(telegramUserId) != null) {
+            changed();
+        }
+    }
+
+    /**
+     * Must hold the messages lock.
+     */
+    private Set<NowListeningMessage> messagesOf(long telegramUserId, Predicate<StoredMessage> filter) {
+        Set<String> inlineMessageIds = messagesByUser.getOrDefault(telegramUserId, Collections.emptySet());
+        Set<NowListeningMessage> messageSet = new LinkedHashSet<>();
+        for (String inlineMessageId : inlineMessageIds) {
+            StoredMessage message = messages.get(inlineMessageId);
+            if (filter.test(message)) {
+                messageSet.add(message.toMessage());
+            }
+        }
+        return Collections.unmodifiableSet(messageSet);
+    }
+
+    /**
+     * Must hold the messages lock.
+     */
+    private Set<NowListeningMessage> allMessages(Predicate<StoredMessage> filter) {
+        return Collections.unmodifiableSet(messages.values().stream()
+                .filter(filter)
+                .map(StoredMessage::toMessage)
+                .collect(Collectors.toCollection(LinkedHashSet::new)));
+    }
+
+    /**
+     * Must hold the messages lock.
+     */
+    private void putMessage(StoredMessage message) {
+        StoredMessage old = messages.put(message.inlineMessageId, message);
+        if (old != null && old.telegramUserId != message.telegramUserId) {
+            removeFromUser(old);
+        }
+        messagesByUser.computeIfAbsent(message.telegramUserId, id -> new LinkedHashSet<>()).add(message.inlineMessageId);
+        changed();
+    }
+
+    /**
+     * Must hold the messages lock.
+     */
+    private void removeFromUser(StoredMessage message) {
+        Set<String> inlineMessageIds = messagesByUser.get(message.telegramUserId);
+        if (inlineMessageIds != null) {
+            inlineMessageIds.remove(message.inlineMessageId);
+            if (inlineMessageIds.isEmpty()) {
+                messagesByUser.remove(message.telegramUserId);
+            }
+        }
+    }
+
+    @Override
+    public Set<NowListeningMessage> getNowListeningMessages(long telegramUserId) throws SQLException {
+        synchronized (messages) {
+            return messagesOf(telegramUserId, message -> true);
+        }
+    }
+
+    @Override
+    public Set<NowListeningMessage> getEnabledNowListeningMessages(long telegramUserId) throws SQLException {
+        synchronized (messages) {
+            return messagesOf(telegramUserId, message -> message.enabled);
+        }
+    }
+
+    @Override
+    public Set<Long> getUsersWithEnabledMessages() throws SQLException {
+        synchronized (messages) {
+            return Collections.unmodifiableSet(messages.values().stream()
+                    .filter(message -> message.enabled)
+                    .map(message -> message.telegramUserId)
+                    .collect(Collectors.toCollection(LinkedHashSet::new)));
+        }
+    }
+
+    @Override
+    public Optional<NowListeningMessage> getNowListeningMessage(long telegramUserId, String inlineMessageId) throws SQLException {
+        synchronized (messages) {
+            StoredMessage message = messages.get(inlineMessageId);
+            return message != null && message.telegramUserId == telegramUserId
+                    ? Optional.of(message.toMessage())
+                    : Optional.empty();
+        }
+    }
+
+    @Override
+    public Set<NowListeningMessage> getEnabledMessagesToBeDisabled() throws SQLException {
+        long cutoff = Instant.now().minus(ENABLED_CUTOFF).getEpochSecond();
+        synchronized (messages) {
+            return allMessages(message -> message.enabled && !message.permanent && message.timeAdded < cutoff);
+        }
+    }
+
+    @Override
+    public Set<NowListeningMessage> getExpiringMessages() throws SQLException {
+        synchronized (messages) {
+            return allMessages(message -> message.enabled && !message.permanent);
+        }
+    }
+
+    @Override
+    public Set<NowListeningMessage> getExpiringMessages(long telegramUserId) throws SQLException {
+        synchronized (messages) {
+            return messagesOf(telegramUserId, message -> message.enabled && !message.permanent);
+        }
+    }
+
+    @Override
+    public void enableMessage(NowListeningMessage nowListeningMessage) throws SQLException {
+        long timeAdded = Instant.now().getEpochSecond();
+        StoredMessage message;
+        synchronized (messages) {
+            message = messages.get(nowListeningMessage.getInlineMessageId());
+            if (message == null || message.telegramUserId != nowListeningMessage.getTelegramUserId()) {
+                return;
+            }
+            putMessage(new StoredMessage(message.id, message.telegramUserId, message.inlineMessageId, timeAdded, true, message.permanent));
+        }
+        messageEnabled(message.telegramUserId, message.inlineMessageId, timeAdded, message.permanent);
+    }
+
+    @Override
+    public Set<NowListeningMessage> disableExpiredMessages(Collection<NowListeningMessage> candidates) throws SQLException {
+        long cutoff = Instant.now().minus(ENABLED_CUTOFF).getEpochSecond();
+        Set<NowListeningMessage> disabled = new LinkedHashSet<>();
+        synchronized (messages) {
+            for (NowListeningMessage candidate : candidates) {
+                StoredMessage message = messages.get(candidate.getInlineMessageId());
+                if (message != null && message.enabled && !message.permanent && message.timeAdded < cutoff) {
+                    putMessage(new StoredMessage(message.id, message.telegramUserId, message.inlineMessageId, message.timeAdded, false, false));
+                    disabled.add(candidate.withEnabled(false));
+                }
+            }
+        }
+        return Collections.unmodifiableSet(disabled);
+    }
+
+    @Override
+    public void addNowListeningMessage(long telegramUserId, String inlineMessageId, boolean permanent) throws SQLException {
+        long timeAdded = Instant.now().getEpochSecond();
+        synchronized (messages) {
+            StoredMessage old = messages.get(inlineMessageId);
+            long id = old != null ? old.id : nextMessageId.getAndIncrement();
+            putMessage(new StoredMessage(id, telegramUserId, inlineMessageId, timeAdded, true, permanent));
+        }
+        messageEnabled(telegramUserId, inlineMessageId, timeAdded, permanent);
+    }
+
+    @Override
+    public void deleteNowListeningMessage(NowListeningMessage nowListeningMessage) throws SQLException {
+        synchronized (messages) {
+            StoredMessage message = messages.get(nowListeningMessage.getInlineMessageId());
+            if (message != null && message.telegramUserId == nowListeningMessage.getTelegramUserId()) {
+                messages.remove(message.inlineMessageId);
+                removeFromUser(message);
+                changed();
+            }
+        }
+    }
+
+    @Override
+    public void deleteAllMessages(long telegramUserId) throws SQLException {
+        synchronized (messages) {
+            Set<String> inlineMessageIds = messagesByUser.remove(telegramUserId);
+            if (inlineMessageIds != null) {
+                inlineMessageIds.forEach(messages::remove);
+                changed();
+            }
+        }
+    }
+
+    @Override
+    public Optional<Set<Long>> reload() throws SQLException {
+        // everything already lives here, so there's nothing to re-read
+        return Optional.of(Collections.emptySet());
+    }
+
+    @Override
+    public void pruneChanges() throws SQLException {
+        // changes aren't logged, as no other node can see them
+    }
+
+    @Override
+    public int heartbeatNode(String nodeId, long now, long leaseSeconds) throws SQLException {
+        synchronized (shardLeases) {
+            shardNodes.put(nodeId, now);
+            shardNodes.values().removeIf(heartbeat -> heartbeat < now - leaseSeconds);
+            return shardNodes.size();
+        }
+    }
+
+    @Override
+    public Map<Integer, String> getShardHolders(long now) throws SQLException {
+        synchronized (shardLeases) {
+            Map<Integer, String> holders = new HashMap<>();
+            shardLeases.forEach((shard, lease) -> {
+                if (lease.expiresAt > now) {
+                    holders.put(shard, lease.nodeId);
+                }
+            });
+            return holders;
+        }
+    }
+
+    @Override
+    public Set<Integer> claimShards(String nodeId, Collection<Integer> shards, long now, long leaseSeconds) throws SQLException {
+        synchronized (shardLeases) {
+            for (int shard : shards) {
+                ShardLease lease = shardLeases.get(shard);
+                if (lease == null || lease.nodeId.equals(nodeId) || lease.expiresAt <= now) {
+                    shardLeases.put(shard, new ShardLease(nodeId, now + leaseSeconds));
+                }
+            }
+            Set<Integer> held = new LinkedHashSet<>();
+            shardLeases.forEach((shard, lease) -> {
+                if (lease.nodeId.equals(nodeId) && lease.expiresAt > now) {
+                    held.add(shard);
+                }
+            });
+            return held;
+        }
+    }
+
+    @Override
+    public void releaseShards(String nodeId, Collection<Integer> shards) throws SQLException {
+        synchronized (shardLeases) {
+            for (int shard : shards) {
+                shardLeases.computeIfPresent(shard, (key, lease) -> lease.nodeId.equals(nodeId) ? null : lease);
+            }
+        }
+    }
+
+    @Override
+    public void leaveShards(String nodeId) throws SQLException {
+        synchronized (shardLeases) {
+            shardLeases.values().removeIf(lease -> lease.nodeId.equals(nodeId));
+            shardNodes.remove(nodeId);
+        }
+    }
+
+    private void loadSnapshot() throws IOException {
+        Snapshot snapshot;
+        try (Reader reader = Files.newBufferedReader(snapshotFile, StandardCharsets.UTF_8)) {
+            snapshot = GSON.fromJson(reader, Snapshot.class);
+        }
+        if (snapshot == null) {
+            return;
+        }
+
+        snapshot.uuids.forEach((uuid, telegramUserId) -> {
+            uuidUsers.put(UUID.fromString(uuid), telegramUserId);
+            userUuids.put(telegramUserId, UUID.fromString(uuid));
+        });
+        spotifyUsers.load(snapshot.users);
+        snapshot.playingData.forEach(data -> playingData.put(data.getTelegramUserId(), data));
+        synchronized (messages) {
+            long maxId = 0;
+            for (StoredMessage message : snapshot.messages) {
+                putMessage(message);
+                maxId = Math.max(maxId, message.id);
+            }
+            nextMessageId.set(maxId + 1);
+        }
+
+        snapshotVersion = version.get();
+        System.out.format("[NowListening] Loaded %d users and %d messages from %s\n",
+                snapshot.users.size(), snapshot.messages.size(), snapshotFile);
+    }
+
+    private synchronized void writeSnapshot() throws IOException {
+        long currentVersion = version.get();
+        if (currentVersion == snapshotVersion) {
+            return;
+        }
+
+        Snapshot snapshot = new Snapshot();
+        userUuids.forEach((telegramUserId, uuid) -> snapshot.uuids.put(uuid.toString(), telegramUserId));
+        snapshot.users.addAll(spotifyUsers.validAfter(Long.MIN_VALUE));
+        snapshot.playingData.addAll(playingData.values());
+        synchronized (messages) {
+            snapshot.messages.addAll(messages.values());
+        }
+
+        // write to the side and move into place, so a crash mid-write leaves the old snapshot intact
+        Path temporary = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            GSON.toJson(snapshot, writer);
+        }
+        Files.move(temporary, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        snapshotVersion = currentVersion;
+    }
+
+}
@@ -0,0 +1,78 @@
+package xyz.nickr.telegram.nowlistening.db;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import xyz.nickr.telegram.nowlistening.db.models.SpotifyPlayingData;
+
+/**
+ * In-memory copy of spotify_playing_data, written back to the database in batches.
+ *
+ * Reads are served from memory once a user's row has been loaded, and an
+ * update only marks the row dirty if it differs from what we last stored.
+ *
+ * @author Nick Robson
+ */
+class PlayingDataCache {
+
+    private final Map<Long, Optional<SpotifyPlayingData>> cache = new ConcurrentHashMap<>();
+    private final Map<Long, SpotifyPlayingData> dirty = new ConcurrentHashMap<>();
+
+    /**
+     * @return the cached playing data, or null if this user hasn't been loaded yet
+     */
+    @SuppressWarnings("OptionalAssignedToNull")
+    Optional<SpotifyPlayingData> get(long telegramUserId) {
+        return cache.get(telegramUserId);
+    }
+
+    @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
+    void loaded(long telegramUserId, Optional<SpotifyPlayingData> playingData) {
+        cache.putIfAbsent(telegramUserId, playingData);
+    }
+
+    /**
+     * @return whether the playing data differs from the cached value and so needs writing
+     */
+    boolean put(SpotifyPlayingData playingData) {
+        Optional<SpotifyPlayingData> old = cache.put(playingData.getTelegramUserId(), Optional.of(playingData));
+        boolean changed = old == null || old.isEmpty() || !sameStoredValue(old.get(), playingData);
+        if (changed || dirty.containsKey(playingData.getTelegramUserId())) {
+            dirty.put(playingData.getTelegramUserId(), playingData);
+        }
+        return changed;
+    }
+
+    void remove(long telegramUserId) {
+        cache.put(telegramUserId, Optional.empty());
+        dirty.remove(telegramUserId);
+    }
+
+    /**
+     * Takes every dirty entry, leaving the cache itself untouched.
+     */
+    Map<Long, SpotifyPlayingData> drainDirty() {
+        Map<Long, SpotifyPlayingData> drained = new LinkedHashMap<>();
+        for (Map.Entry<Long, SpotifyPlayingData> entry : dirty.entrySet()) {
+            if (dirty.remove(entry.getKey(), entry.getValue())) {
+                drained.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return drained;
+    }
+
+    /**
+     * Marks entries dirty again after a failed write, unless they've since been updated.
+     */
+    void restoreDirty(Map<Long, SpotifyPlayingData> entries) {
+        entries.forEach(dirty::putIfAbsent);
+    }
+
+    private static boolean sameStoredValue(SpotifyPlayingData a, SpotifyPlayingData b) {
+        // equals() ignores the url and last checked time, only the former is worth a write
+        return a.equals(b) && Objects.equals(a.getLastTrackUrl(), b.getLastTrackUrl());
+    }
+
+}
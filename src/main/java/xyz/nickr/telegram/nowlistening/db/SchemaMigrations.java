@@ -0,0 +1,215 @@
+package xyz.nickr.telegram.nowlistening.db;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.List;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Ordered schema migrations, each applied once and recorded in schema_version.
+ *
+ * New migrations must be appended with the next version number;
+ * existing ones must never be edited once released.
+ *
+ * @author Nick Robson
+ */
+class SchemaMigrations {
+
+    private interface Step {
+
+        void apply(Statement statement) throws SQLException;
+
+    }
+
+    @Getter
+    @AllArgsConstructor
+    private static class Migration {
+
+        private final int version;
+        private final String description;
+        private final Step step;
+
+    }
+
+    private static final List<Migration> MIGRATIONS = List.of(
+            new Migration(1, "Create initial tables", statement -> {
+                statement.execute(
+                        "CREATE TABLE IF NOT EXISTS uuids (" +
+                                "id INTEGER PRIMARY KEY," +
+                                "telegram_user INTEGER UNIQUE NOT NULL," +
+                                "uuid STRING UNIQUE NOT NULL" +
+                                ")");
+                statement.execute(
+                        "CREATE TABLE IF NOT EXISTS spotify_user (" +
+                                "id INTEGER PRIMARY KEY," +
+                                "telegram_user INTEGER UNIQUE NOT NULL," +
+                                "language_code STRING," +
+                                "access_token STRING," +
+                                "token_type STRING," +
+                                "scope STRING," +
+                                "expiry_date INTEGER," +
+                                "refresh_token STRING" +
+                                ")");
+                statement.execute(
+                        "CREATE TABLE IF NOT EXISTS spotify_playing_data (" +
+                                "id INTEGER PRIMARY KEY," +
+                                "telegram_user INTEGER UNIQUE NOT NULL," +
+                                "last_track_name STRING," +
+                                "last_track_artist STRING," +
+                                "last_track_url STRING," +
+                                "last_checked INTEGER," +
+                                "playing BOOLEAN" +
+                                ")");
+                statement.execute(
+                        "CREATE TABLE IF NOT EXISTS now_listening_messages (" +
+                                "id INTEGER PRIMARY KEY," +
+                                "telegram_user INTEGER NOT NULL," +
+                                "inline_message_id STRING UNIQUE NOT NULL," +
+                                "time_added INTEGER NOT NULL," +
+                                "enabled BOOLEAN NOT NULL DEFAULT 1," +
+                                "permanent BOOLEAN NOT NULL DEFAULT 0" +
+                                ")");
+                // databases created before schema_version existed may be missing these
+                addColumnIfMissing(statement, "ALTER TABLE now_listening_messages " +
+                        "ADD COLUMN enabled BOOLEAN NOT NULL DEFAULT 1");
+                addColumnIfMissing(statement, "ALTER TABLE now_listening_messages " +
+                        "ADD COLUMN permanent BOOLEAN NOT NULL DEFAULT 0");
+            }),
+            new Migration(2, "Index message expiry, enabled messages per user and token expiry", statement -> {
+                statement.execute(
+                        "CREATE INDEX IF NOT EXISTS now_listening_messages_expiry " +
+                                "ON now_listening_messages (enabled, permanent, time_added)");
+                statement.execute(
+                        "CREATE INDEX IF NOT EXISTS now_listening_messages_user_enabled " +
+                                "ON now_listening_messages (telegram_user, enabled)");
+                statement.execute(
+                        "CREATE INDEX IF NOT EXISTS spotify_user_expiry " +
+                                "ON spotify_user (expiry_date)");
+            }),
+            new Migration(3, "Create shard leases for sharded polling", statement -> {
+                statement.execute(
+                        "CREATE TABLE IF NOT EXISTS shard_nodes (" +
+                                "node_id STRING PRIMARY KEY," +
+                                "heartbeat INTEGER NOT NULL" +
+                                ")");
+                statement.execute(
+                        "CREATE TABLE IF NOT EXISTS shard_leases (" +
+                                "shard INTEGER PRIMARY KEY," +
+                                "node_id STRING," +
+                                "expires_at INTEGER NOT NULL DEFAULT 0" +
+                                ")");
+            }),
+            new Migration(4, "Create a log of which users' rows change, so other nodes can reload just those", statement -> {
+                statement.execute(
+                        "CREATE TABLE IF NOT EXISTS user_changes (" +
+                                "seq INTEGER PRIMARY KEY AUTOINCREMENT," +
+                                "telegram_user INTEGER NOT NULL," +
+                                "changed_at INTEGER NOT NULL" +
+                                ")");
+                statement.execute(
+                        "CREATE INDEX IF NOT EXISTS user_changes_changed_at " +
+                                "ON user_changes (changed_at)");
+            })
+    );
+
+    private static final List<String> LOGGED_TABLES = List.of("spotify_user", "now_listening_messages");
+
+    private static void addColumnIfMissing(Statement statement, String sql) throws SQLException {
+        try {
+            statement.execute(sql);
+        } catch (SQLException ex) {
+            if (!ex.getMessage().contains("duplicate column name")) {
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Creates or drops the triggers filling in user_changes, which only sharded nodes read.
+     * Every node sharing a database must agree on whether sharding is enabled.
+     */
+    static void logChanges(SqliteConnection connection, boolean enabled) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            for (String table : LOGGED_TABLES) {
+                if (!enabled) {
+                    statement.execute("DROP TRIGGER IF EXISTS " + table + "_inserted");
+                    statement.execute("DROP TRIGGER IF EXISTS " + table + "_updated");
+                    statement.execute("DROP TRIGGER IF EXISTS " + table + "_deleted");
+                    continue;
+                }
+                statement.execute(
+                        "CREATE TRIGGER IF NOT EXISTS " + table + "_inserted AFTER INSERT ON " + table + " BEGIN " +
+                                "INSERT INTO user_changes (telegram_user, changed_at) " +
+                                "VALUES (NEW.telegram_user, CAST(strftime('%s', 'now') AS INTEGER)); " +
+                                "END");
+                // an upsert can move a message to another user, who has changed as well
+                statement.execute(
+                        "CREATE TRIGGER IF NOT EXISTS " + table + "_updated AFTER UPDATE ON " + table + " BEGIN " +
+                                "INSERT INTO user_changes (telegram_user, changed_at) " +
+                                "VALUES (NEW.telegram_user, CAST(strftime('%s', 'now') AS INTEGER)); " +
+                                "INSERT INTO user_changes (telegram_user, changed_at) " +
+                                "SELECT OLD.telegram_user, CAST(strftime('%s', 'now') AS INTEGER) " +
+                                "WHERE OLD.telegram_user != NEW.telegram_user; " +
+                                "END");
+                statement.execute(
+                        "CREATE TRIGGER IF NOT EXISTS " + table + "_deleted AFTER DELETE ON " + table + " BEGIN " +
+                                "INSERT INTO user_changes (telegram_user, changed_at) " +
+                                "VALUES (OLD.telegram_user, CAST(strftime('%s', 'now') AS INTEGER)); " +
+                                "END");
+            }
+        }
+    }
+
+    /**
+     * Applies every migration newer than the database's current version, each in its own transaction.
+     */
+    static void migrate(SqliteConnection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(
+                    "CREATE TABLE IF NOT EXISTS schema_version (" +
+                            "version INTEGER PRIMARY KEY," +
+                            "description STRING NOT NULL," +
+                            "applied_at INTEGER NOT NULL" +
+                            ")");
+        }
+
+        int currentVersion = 0;
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT MAX(version) AS version FROM schema_version")) {
+            if (rs.next()) {
+                currentVersion = rs.getInt("version");
+            }
+        }
+
+        for (Migration migration : MIGRATIONS) {
+            if (migration.getVersion() <= currentVersion) {
+                continue;
+            }
+            connection.setAutoCommit(false);
+            try (Statement statement = connection.createStatement()) {
+                migration.getStep().apply(statement);
+
+                PreparedStatement preparedStatement = connection.prepare(
+                        "INSERT INTO schema_version (version, description, applied_at) VALUES (?, ?, ?)"
+                );
+                preparedStatement.setInt(1, migration.getVersion());
+                preparedStatement.setString(2, migration.getDescription());
+                preparedStatement.setLong(3, Instant.now().getEpochSecond());
+                preparedStatement.execute();
+
+                connection.commit();
+            } catch (SQLException ex) {
+                connection.rollback();
+                throw new SQLException("Failed to apply schema migration " + migration.getVersion(), ex);
+            } finally {
+                connection.setAutoCommit(true);
+            }
+            System.out.format("[NowListening] Applied schema migration %d: %s\n", migration.getVersion(), migration.getDescription());
+        }
+    }
+
+}
@@ -0,0 +1,125 @@
+package xyz.nickr.telegram.nowlistening.db;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import xyz.nickr.telegram.nowlistening.db.models.SpotifyUser;
+
+/**
+ * In-memory copy of spotify_user, with an index ordered by token expiry
+ * so finding the users that need refreshing doesn't require a scan.
+ *
+ * @author Nick Robson
+ */
+class SpotifyUserCache {
+
+    private static final Comparator<SpotifyUser> EXPIRY_ORDER = Comparator
+            .comparingLong(SpotifyUser::getExpiryDate)
+            .thenComparingLong(SpotifyUser::getTelegramUserId);
+
+    private final Map<Long, SpotifyUser> users = new ConcurrentHashMap<>();
+    private final NavigableSet<SpotifyUser> byExpiry = new TreeSet<>(EXPIRY_ORDER);
+
+    /**
+     * Replaces the cache's contents, without ever leaving a user who's still present missing in between.
+     */
+    synchronized void load(Collection<SpotifyUser> loaded) {
+        Set<Long> loadedIds = new HashSet<>();
+        loaded.forEach(user -> loadedIds.add(user.getTelegramUserId()));
+        new ArrayList<>(users.keySet()).stream()
+                .filter(telegramUserId -> !loadedIds.contains(telegramUserId))
+                .forEach(this::remove);
+        loaded.forEach(this::put);
+    }
+
+    Optional<SpotifyUser> get(long telegramUserId) {
+        return Optional.ofNullable(users.get(telegramUserId));
+    }
+
+    synchronized void put(SpotifyUser user) {
+        SpotifyUser old = users.put(user.getTelegramUserId(), user);
+        if (old != null) {
+            byExpiry.remove(old);
+        }
+        byExpiry.add(user);
+    }
+
+    /**
+     * Replaces the tokens of the cached user, if there is one, keeping everything else.
+     *
+     * @return whether the user was cached
+     */
+    synchronized boolean updateTokens(SpotifyUser tokens) {
+        SpotifyUser cached = users.get(tokens.getTelegramUserId());
+        if (cached == null) {
+            return false;
+        }
+        put(cached
+                .withAccessToken(tokens.getAccessToken())
+                .withTokenType(tokens.getTokenType())
+                .withScope(tokens.getScope())
+                .withExpiryDate(tokens.getExpiryDate())
+                .withRefreshToken(tokens.getRefreshToken()));
+        return true;
+    }
+
+    /**
+     * Replaces the language code of the cached user, if there is one, keeping everything else.
+     */
+    synchronized boolean updateLanguageCode(long telegramUserId, String languageCode) {
+        SpotifyUser cached = users.get(telegramUserId);
+        if (cached == null) {
+            return false;
+        }
+        put(cached.withLanguageCode(languageCode));
+        return true;
+    }
+
+    synchronized void remove(long telegramUserId) {
+        SpotifyUser old = users.remove(telegramUserId);
+        if (old != null) {
+            byExpiry.remove(old);
+        }
+    }
+
+    /**
+     * @return the users whose tokens expire at or before the given time, soonest first
+     */
+    synchronized Set<SpotifyUser> expiringBefore(long epochSecond) {
+        Set<SpotifyUser> userSet = new LinkedHashSet<>();
+        for (SpotifyUser user : byExpiry) {
+            if (user.getExpiryDate() > epochSecond) {
+                break;
+            }
+            userSet.add(user);
+        }
+        return userSet;
+    }
+
+    /**
+     * @return the users whose tokens are still valid after the given time
+     */
+    synchronized Set<SpotifyUser> validAfter(long epochSecond) {
+        Set<SpotifyUser> userSet = new LinkedHashSet<>();
+        for (SpotifyUser user : byExpiry.descendingSet()) {
+            if (user.getExpiryDate() <= epochSecond) {
+                break;
+            }
+            userSet.add(user);
+        }
+        return userSet;
+    }
+
+    Set<Long> userIds() {
+        return new LinkedHashSet<>(users.keySet());
+    }
+
+}
@@ -0,0 +1,89 @@
+package xyz.nickr.telegram.nowlistening.db;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A single SQLite connection along with the statements prepared on it.
+ *
+ * Statements returned by {@link #prepare(String)} are reused between calls,
+ * so callers must not close them. A connection must only be used by one
+ * thread at a time.
+ *
+ * @author Nick Robson
+ */
+class SqliteConnection {
+
+    private final String url;
+    private final Map<String, String> pragmas;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+    private Connection connection;
+
+    SqliteConnection(String url, Map<String, String> pragmas) {
+        this.url = url;
+        this.pragmas = pragmas;
+    }
+
+    private Connection connection() throws SQLException {
+        if (connection == null) {
+            connection = DriverManager.getConnection(url);
+            try (Statement statement = connection.createStatement()) {
+                for (Map.Entry<String, String> pragma : pragmas.entrySet()) {
+                    statement.execute("PRAGMA " + pragma.getKey() + " = " + pragma.getValue());
+                }
+            }
+        }
+        return connection;
+    }
+
+    PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement preparedStatement = statements.get(sql);
+        if (preparedStatement == null) {
+            preparedStatement = connection().prepareStatement(sql);
+            statements.put(sql, preparedStatement);
+        } else {
+            preparedStatement.clearParameters();
+            preparedStatement.clearBatch();
+        }
+        return preparedStatement;
+    }
+
+    Statement createStatement() throws SQLException {
+        return connection().createStatement();
+    }
+
+    void setAutoCommit(boolean autoCommit) throws SQLException {
+        connection().setAutoCommit(autoCommit);
+    }
+
+    void commit() throws SQLException {
+        connection().commit();
+    }
+
+    void rollback() throws SQLException {
+        connection().rollback();
+    }
+
+    void close() {
+        statements.values().forEach(preparedStatement -> {
+            try {
+                preparedStatement.close();
+            } catch (SQLException ignored) {
+            }
+        });
+        statements.clear();
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (SQLException ignored) {
+            }
+            connection = null;
+        }
+    }
+
+}
@@ -0,0 +1,1033 @@
+package xyz.nickr.telegram.nowlistening.db;
+
+import com.google.gson.JsonObject;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.SQLRecoverableException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import xyz.nickr.telegram.nowlistening.db.models.NowListeningMessage;
+import xyz.nickr.telegram.nowlistening.db.models.SpotifyPlayingData;
+import xyz.nickr.telegram.nowlistening.db.models.SpotifyUser;
+import xyz.nickr.telegram.nowlistening.db.models.UserSnapshot;
+import xyz.nickr.telegram.nowlistening.metrics.Counter;
+import xyz.nickr.telegram.nowlistening.metrics.Histogram;
+import xyz.nickr.telegram.nowlistening.metrics.Metrics;
+import xyz.nickr.telegram.nowlistening.util.ConfigUtil;
+
+/**
+ * Stores everything in SQLite, keeping users and playing data in memory as well.
+ *
+ * @author Nick Robson
+ */
+public class SqliteDatabaseController implements DatabaseController {
+
+    private static final Metrics.Family<Histogram> QUERY_SECONDS = Metrics.histogram(
+            "nowlistening_db_query_seconds", "Time spent running each DatabaseController method's statements", "method");
+    private static final Metrics.Family<Counter> QUERY_ERRORS = Metrics.counter(
+            "nowlistening_db_errors_total", "DatabaseController methods that failed with an SQLException", "method");
+
+    // keeps a single executeBatch from growing without bound, e.g. after downtime
+    private static final int BATCH_CHUNK_SIZE = 500;
+
+    // a node that hasn't reloaded for this long re-reads everything instead
+    private static final Duration CHANGE_RETENTION = Duration.ofMinutes(10);
+
+    private static final Map<String, String> DEFAULT_PRAGMAS = Map.of(
+            "journal_mode", "WAL",
+            "synchronous", "NORMAL",
+            "busy_timeout", "5000",
+            "cache_size", "-16000",
+            "mmap_size", "268435456");
+
+    private final String url;
+    private final PlayingDataCache playingDataCache = new PlayingDataCache();
+    private final SpotifyUserCache spotifyUserCache = new SpotifyUserCache();
+    private final List<MessageEnabledListener> messageListeners = new CopyOnWriteArrayList<>();
+
+    // SQLite only allows a single writer, so all writes share one connection
+    // while reads are spread over a pool of their own.
+    private final SqliteConnection writer;
+    private final BlockingQueue<SqliteConnection> readers;
+
+    // the last user_changes row reloaded, guarded by spotifyUserCache
+    private long lastChangeSeq;
+
+    public SqliteDatabaseController(JsonObject config) {
+        JsonObject db = config.getAsJsonObject("database");
+
+        this.url = db.getAsJsonPrimitive("url").getAsString();
+
+        Objects.requireNonNull(this.url, "Database connection URL may not be null");
+
+        Map<String, String> pragmas = new LinkedHashMap<>(DEFAULT_PRAGMAS);
+        ConfigUtil.getObject(db, "pragmas").entrySet()
+                .forEach(pragma -> pragmas.put(pragma.getKey(), pragma.getValue().getAsString()));
+
+        int readerCount = ConfigUtil.getInt(db, "reader_pool_size", 4);
+        this.writer = new SqliteConnection(this.url, pragmas);
+        if (readerCount > 0) {
+            this.readers = new ArrayBlockingQueue<>(readerCount);
+            for (int i = 0; i < readerCount; i++) {
+                this.readers.add(new SqliteConnection(this.url, pragmas));
+            }
+        } else {
+            // e.g. for in-memory databases, where each connection would see a different database
+            this.readers = null;
+        }
+
+        boolean sharded = ConfigUtil.getBoolean(ConfigUtil.getObject(config, "sharding"), "enabled", false);
+        try {
+            migrateSchema();
+            withWriter("logChanges", connection -> {
+                SchemaMigrations.logChanges(connection, sharded);
+                return null;
+            });
+        } catch (SQLException ex) {
+            throw new RuntimeException("Failed to migrate the database schema", ex);
+        }
+
+        try {
+            // read first, so anything changed while loading is reloaded again rather than missed
+            lastChangeSeq = getLatestChangeSeq();
+            loadSpotifyUsers();
+        } catch (SQLException ex) {
+            throw new RuntimeException("Failed to load spotify users", ex);
+        }
+    }
+
+    @Override
+    public void addMessageListener(MessageEnabledListener listener) {
+        messageListeners.add(Objects.requireNonNull(listener, "listener can't be null"));
+    }
+
+    private void messageEnabled(long telegramUserId, String inlineMessageId, long timeAdded, boolean permanent) {
+        messageListeners.forEach(listener -> {
+            try {
+                listener.onMessageEnabled(telegramUserId, inlineMessageId, timeAdded, permanent);
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        });
+    }
+
+    private interface ConnectionConsumer<T> {
+
+        T consume(SqliteConnection connection) throws SQLException;
+
+    }
+
+    private <T> T withWriter(String method, ConnectionConsumer<T> consumer) throws SQLException {
+        synchronized (writer) {
+            return timed(method, writer, consumer);
+        }
+    }
+
+    private <T> T withReader(String method, ConnectionConsumer<T> consumer) throws SQLException {
+        if (readers == null) {
+            return withWriter(method, consumer);
+        }
+        SqliteConnection reader;
+        try {
+            reader = readers.take();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", ex);
+        }
+        try {
+            return timed(method, reader, consumer);
+        } finally {
+            readers.add(reader);
+        }
+    }
+
+    private <T> T timed(String method, SqliteConnection connection, ConnectionConsumer<T> consumer) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return withConnection(connection, consumer, 0);
+        } catch (SQLException ex) {
+            QUERY_ERRORS.labels(method).inc();
+            throw ex;
+        } finally {
+            QUERY_SECONDS.labels(method).observeSince(start);
+        }
+    }
+
+    private <T> T withConnection(SqliteConnection connection, ConnectionConsumer<T> consumer, int retries) throws SQLException {
+        try {
+            return consumer.consume(connection);
+        } catch (SQLRecoverableException ex) {
+            connection.close();
+            if (retries < 5) {
+                return withConnection(connection, consumer, retries + 1);
+            } else {
+                throw ex;
+            }
+        }
+    }
+
+    public void migrateSchema() throws SQLException {
+        withWriter("migrateSchema", connection -> {
+            SchemaMigrations.migrate(connection);
+            return null;
+        });
+    }
+
+    @Override
+    public Optional<Long> getTelegramUserId(UUID uuid) throws SQLException {
+        return withReader("getTelegramUserId", connection -> {
+            PreparedStatement preparedStatement = connection.prepare(
+                    "SELECT * FROM uuids WHERE uuid = ?"
+            );
+            preparedStatement.setString(1, uuid.toString());
+
+            try (ResultSet rs = preparedStatement.executeQuery()) {
+                if (rs.next()) {
+                    return Optional.of(rs.getLong("telegram_user"));
+                }
+            }
+            return Optional.empty();
+        });
+    }
+
+    @Override
+    public UUID getUUID(long telegramUserId) throws SQLException {
+        return withWriter("getUUID", connection -> {
+            PreparedStatement preparedStatement = connection.prepare(
+                    "SELECT * FROM uuids WHERE telegram_user = ?"
+            );
+            preparedStatement.setLong(1, telegramUserId);
+            try (ResultSet rs = preparedStatement.executeQuery()) {
+                if (rs.next()) {
+                    return UUID.fromString(rs.getString("uuid"));
+                }
+            }
+
+            UUID uuid;
+            do {
+                uuid = UUID.randomUUID();
+                PreparedStatement insertStatement = connection.prepare(
+                        "INSERT INTO uuids (telegram_user, uuid) VALUES (?, ?)"
+                );
+                insertStatement.setLong(1, telegramUserId);
+                insertStatement.setString(2, uuid.toString());
+                try {
+                    insertStatement.execute();
+                    break;
+                } catch (SQLIntegrityConstraintViolationException ignored) {
+                }
+            } while (true);
+            return uuid;
+        });
+    }
+
+    @Override
+    public void deleteUUID(UUID uuid) throws SQLException {
+        withWriter("deleteUUID", connection -> {
+            PreparedStatement preparedStatement = connection.prepare(
+                    "DELETE FROM uuids WHERE uuid = ?"
+            );
+            preparedStatement.setString(1, uuid.toString());
+            preparedStatement.execute();
+            return null;
+        });
+    }
+
+    private void loadSpotifyUsers() throws SQLException {
+        withReader("loadSpotifyUsers", connection -> {
+            PreparedStatement preparedStatement = connection.prepare(
+                    "SELECT * FROM spotify_user"
+            );
+            List<SpotifyUser> userList = new ArrayList<>();
+            try (ResultSet rs = preparedStatement.executeQuery()) {
+                while (rs.next()) {
+                    userList.add(toUser(rs));
+                }
+            }
+            spotifyUserCache.load(userList);
+            return null;
+        });
+    }
+
+    @Override
+    public Optional<SpotifyUser> getSpotifyUser(long telegramUserId) throws SQLException {
+        return spotifyUserCache.get(telegramUserId);
+    }
+
+    @Override
+    public void updateSpotifyUser(SpotifyUser user) throws SQLException {
+        synchronized (spotifyUserCache) {
+            withWriter("updateSpotifyUser", connection -> {
+                PreparedStatement preparedStatement = connection.prepare(
+                        "INSERT INTO spotify_user " +
+                                "(telegram_user, language_code, access_token, token_type, " +
+                                "scope, expiry_date, refresh_token) " +
+                                "VALUES (?, ?, ?, ?, ?, ?, ?) " +
+                                "ON CONFLICT (telegram_user) DO UPDATE SET " +
+                                "language_code = excluded.language_code, " +
+                                "access_token = excluded.access_token, " +
+                                "token_type = excluded.token_type, " +
+                                "scope = excluded.scope, " +
+                                "expiry_date = excluded.expiry_date, " +
+                                "refresh_token = excluded.refresh_token"
+                );
+                preparedStatement.setLong(1, user.getTelegramUserId());
+                preparedStatement.setString(2, user.getLanguageCode());
+                preparedStatement.setString(3, user.getAccessToken());
+                preparedStatement.setString(4, user.getTokenType());
+                preparedStatement.setString(5, user.getScope());
+                preparedStatement.setLong(6, user.getExpiryDate());
+                preparedStatement.setString(7, user.getRefreshToken());
+                preparedStatement.execute();
+                return null;
+            });
+            spotifyUserCache.put(user);
+        }
+    }
+
+    @Override
+    public boolean updateSpotifyTokens(SpotifyUser user) throws SQLException {
+        synchronized (spotifyUserCache) {
+            int updated = withWriter("updateSpotifyTokens", connection -> {
+                PreparedStatement preparedStatement = connection.prepare(
+                        "UPDATE spotify_user SET " +
+                                "access_token = ?, token_type = ?, scope = ?, " +
+                                "expiry_date = ?, refresh_token = ? " +
+                                "WHERE telegram_user = ?"
+                );
+                preparedStatement.setString(1, user.getAccessToken());
+                preparedStatement.setString(2, user.getTokenType());
+                preparedStatement.setString(3, user.getScope());
+                preparedStatement.setLong(4, user.getExpiryDate());
+                preparedStatement.setString(5, user.getRefreshToken());
+                preparedStatement.setLong(6, user.getTelegramUserId());
+                return preparedStatement.executeUpdate();
+            });
+            if (updated == 0) {
+                spotifyUserCache.remove(user.getTelegramUserId());
+                return false;
+            }
+            if (!spotifyUserCache.updateTokens(user)) {
+                // linked on another node since we last reloaded
+                spotifyUserCache.put(user);
+            }
+            return true;
+        }
+    }
+
+    @Override
+    public void updateLanguageCode(long telegramUserId, String languageCode) throws SQLException {
+        synchronized (spotifyUserCache) {
+            withWriter("updateLanguageCode", connection -> {
+                PreparedStatement preparedStatement = connection.prepare(
+                        "UPDATE spotify_user SET language_code = ? WHERE telegram_user = ?"
+                );
+                preparedStatement.setString(1, languageCode);
+                preparedStatement.setLong(2, telegramUserId);
+                preparedStatement.execute();
+                return null;
+            });
+            spotifyUserCache.updateLanguageCode(telegramUserId, languageCode);
+        }
+    }
+
+    @Override
+    public void deleteSpotifyUser(long telegramUserId) throws SQLException {
+        synchronized (spotifyUserCache) {
+            withWriter("deleteSpotifyUser", connection -> {
+                PreparedStatement preparedStatement = connection.prepare(
+                        "DELETE FROM spotify_user WHERE telegram_user = ?"
+                );
+                preparedStatement.setLong(1, telegramUserId);
+                preparedStatement.execute();
+                return null;
+            });
+            spotifyUserCache.remove(telegramUserId);
+        }
+    }
+
+    @Override
+    public Set<SpotifyUser> getUsersRequiringReauthorisation() throws SQLException {
+        return getUsersExpiringBefore(Instant.now().getEpochSecond());
+    }
+
+    @Override
+    public Set<SpotifyUser> getUsersExpiringBefore(long epochSecond) throws SQLException {
+        return Collections.unmodifiableSet(spotifyUserCache.expiringBefore(epochSecond));
+    }
+
+    @Override
+    public Set<SpotifyUser> getUsersWithValidAccess() throws SQLException {
+        return Collections.unmodifiableSet(spotifyUserCache.validAfter(Instant.now().getEpochSecond()));
+    }
+
+    @Override
+    public Set<Long> getAllUserIds() throws SQLException {
+        return Collections.unmodifiableSet(spotifyUserCache.userIds());
+    }
+
+    @Override
+    public List<UserSnapshot> getRefreshSnapshot() throws SQLException {
+        // a single query rather than one per user
+        Map<Long, SpotifyUser> users = new LinkedHashMap<>();
+        Map<Long, SpotifyPlayingData> playingData = new HashMap<>();
+        Map<Long, Set<NowListeningMessage>> messages = new HashMap<>();
+
+        withReader("getRefreshSnapshot", connection -> {
+            PreparedStatement preparedStatement = connection.prepare(
+                    "SELECT u.telegram_user, u.language_code, u.access_token, u.token_type, " +
+                            "u.scope, u.expiry_date, u.refresh_token, " +
+                            "p.telegram_user AS playing_user, p.last_track_name, p.last_track_artist, " +
+                            "p.last_track_url, p.last_checked, p.playing, " +
+                            "m.id AS message_id, m.inline_message_id, m.time_added, m.enabled " +
+                            "FROM spotify_user u " +
+                            "LEFT JOIN spotify_playing_data p ON p.telegram_user = u.telegram_user " +
+                            "LEFT JOIN now_listening_messages m ON m.telegram_user = u.telegram_user AND m.enabled = 1 " +
+                            "WHERE u.expiry_date > ?"
+            );
+            preparedStatement.setLong(1, Instant.now().getEpochSecond());
+
+            try (ResultSet rs = preparedStatement.executeQuery()) {
+                while (rs.next()) {
+                    long telegramUserId = rs.getLong("telegram_user");
+                    if (!users.containsKey(telegramUserId)) {
+                        users.put(telegramUserId, toUser(rs));
+                        messages.put(telegramUserId, new LinkedHashSet<>());
+                        rs.getLong("playing_user");
+                        if (!rs.wasNull()) {
+                            playingData.put(telegramUserId, toPlayingData(rs));
+                        }
+                    }
+                    rs.getLong("message_id");
+                    if (!rs.wasNull()) {
+                        messages.get(telegramUserId).add(new NowListeningMessage(
+                                rs.getLong("message_id"),
+                                telegramUserId,
+                                rs.getString("inline_message_id"),
+                                rs.getLong("time_added"),
+                                rs.getBoolean("enabled")));
+                    }
+                }
+            }
+            return null;
+        });
+
+        List<UserSnapshot> snapshots = new ArrayList<>(users.size());
+        for (SpotifyUser user : users.values()) {
+            long telegramUserId = user.getTelegramUserId();
+            // the in-memory copies may be newer than what's been written so far
+            SpotifyUser cachedUser = spotifyUserCache.get(telegramUserId).orElse(user);
+            Optional<SpotifyPlayingData> cachedPlayingData = playingDataCache.get(telegramUserId);
+            if (cachedPlayingData == null) {
+                cachedPlayingData = Optional.ofNullable(playingData.get(telegramUserId));
+                playingDataCache.loaded(telegramUserId, cachedPlayingData);
+            }
+            snapshots.add(new UserSnapshot(
+                    cachedUser,
+                    cachedPlayingData.orElse(null),
+                    Collections.unmodifiableSet(messages.get(telegramUserId))));
+        }
+        return snapshots;
+    }
+
+    private SpotifyUser toUser(ResultSet rs) throws SQLException {
+        long storedTelegramUserId = rs.getLong("telegram_user");
+        String languageCode = rs.getString("language_code");
+        String accessToken = rs.getString("access_token");
+        String tokenType = rs.getString("token_type");
+        String scope = rs.getString("scope");
+        long expiryDate = rs.getLong("expiry_date");
+        String refreshToken = rs.getString("refresh_token");
+        return new SpotifyUser(storedTelegramUserId, languageCode, accessToken, tokenType, scope, expiryDate, refreshToken);
+    }
+
+    @Override
+    public Optional<SpotifyPlayingData> getPlayingData(long telegramUserId) throws SQLException {
+        Optional<SpotifyPlayingData> cached = playingDataCache.get(telegramUserId);
+        if (cached != null) {
+            return cached;
+        }
+
+        Optional<SpotifyPlayingData> playingData = withReader("getPlayingData", connection -> {
+            PreparedStatement preparedStatement = connection.prepare(
+                    "SELECT * FROM spotify_playing_data WHERE telegram_user = ? LIMIT 1"
+            );
+            preparedStatement.setLong(1, telegramUserId);
+
+            try (ResultSet rs = preparedStatement.executeQuery()) {
+                if (rs.next()) {
+                    return Optional.of(toPlayingData(rs));
+                } else {
+                    return Optional.empty();
+                }
+            }
+        });
+        playingDataCache.loaded(telegramUserId, playingData);
+        return playingData;
+    }
+
+    private SpotifyPlayingData toPlayingData(ResultSet rs) throws SQLException {
+        return SpotifyPlayingData.builder()
+                .telegramUserId(rs.getLong("telegram_user"))
+                .lastTrackName(rs.getString("last_track_name"))
+                .lastTrackArtist(rs.getString("last_track_artist"))
+                .lastTrackUrl(rs.getString("last_track_url"))
+                .lastChecked(rs.getLong("last_checked"))
+                .playing(rs.getBoolean("playing"))
+                .build();
+    }
+
+    @Override
+    public void updatePlayingData(SpotifyPlayingData playingData) throws SQLException {
+        playingDataCache.put(playingData);
+    }
+
+    @Override
+    public int flushPlayingData() throws SQLException {
+        // written in a single transaction, in chunks
+        synchronized (playingDataCache) {
+            Map<Long, SpotifyPlayingData> dirty = playingDataCache.drainDirty();
+            if (dirty.isEmpty()) {
+                return 0;
+            }
+            try {
+                withWriter("flushPlayingData", connection -> {
+                    connection.setAutoCommit(false);
+                    try {
+                        PreparedStatement preparedStatement = connection.prepare(
+                                "INSERT INTO spotify_playing_data " +
+                                        "(telegram_user, last_track_name, last_track_artist, " +
+                                        "last_track_url, last_checked, playing) " +
+                                        "VALUES (?, ?, ?, ?, ?, ?) " +
+                                        "ON CONFLICT (telegram_user) DO UPDATE SET " +
+                                        "last_track_name = excluded.last_track_name, " +
+                                        "last_track_artist = excluded.last_track_artist, " +
+                                        "last_track_url = excluded.last_track_url, " +
+                                        "last_checked = excluded.last_checked, " +
+                                        "playing = excluded.playing"
+                        );
+                        int batched = 0;
+                        for (SpotifyPlayingData playingData : dirty.values()) {
+                            preparedStatement.setLong(1, playingData.getTelegramUserId());
+                            preparedStatement.setString(2, playingData.getLastTrackName());
+                            preparedStatement.setString(3, playingData.getLastTrackArtist());
+                            preparedStatement.setString(4, playingData.getLastTrackUrl());
+                            preparedStatement.setLong(5, playingData.getLastChecked());
+                            preparedStatement.setBoolean(6, playingData.isPlaying());
+                            preparedStatement.addBatch();
+                            if (++batched % BATCH_CHUNK_SIZE == 0) {
+                                preparedStatement.executeBatch();
+                            }
+                        }
+                        preparedStatement.executeBatch();
+                        connection.commit();
+                    } catch (SQLException ex) {
+                        connection.rollback();
+                        throw ex;
+                    } finally {
+                        connection.setAutoCommit(true);
+                    }
+                    return null;
+                });
+            } catch (SQLException ex) {
+                playingDataCache.restoreDirty(dirty);
+                throw ex;
+            }
+            return dirty.size();
+        }
+    }
+
+    @Override
+    public void deletePlayingData(long telegramUserId) throws SQLException {
+        synchronized (playingDataCache) {
+            playingDataCache.remove(telegramUserId);
+            withWriter("deletePlayingData", connection -> {
+                PreparedStatement preparedStatement = connection.prepare(
+                        "DELETE FROM spotify_playing_data WHERE telegram_user = ?"
+                );
+                preparedStatement.setLong(1, telegramUserId);
+                preparedStatement.execute();
+                return null;
+            });
+        }
+    }
+
+    @Override
+    public Set<NowListeningMessage> getNowListeningMessages(long telegramUserId) throws SQLException {
+        return withReader("getNowListeningMessages", connection -> {
+            PreparedStatement preparedStatement = connection.prepare(
+                    "SELECT * FROM now_listening_messages WHERE telegram_user = ?"
+            );
+            preparedStatement.setLong(1, telegramUserId);
+            return getAllMessages(preparedStatement);
+        });
+    }
+
+    @Override
+    public Set<NowListeningMessage> getEnabledNowListeningMessages(long telegramUserId) throws SQLException {
+        return withReader("getEnabledNowListeningMessages", connection -> {
+            PreparedStatement preparedStatement = connection.prepare(
+                    "SELECT * FROM now_listening_messages WHERE telegram_user = ? AND enabled = 1"
+            );
+            preparedStatement.setLong(1, telegramUserId);
+            return getAllMessages(preparedStatement);
+        });
+    }
+
+    private Set<NowListeningMessage> getAllMessages(PreparedStatement preparedStatement) throws SQLException {
+        Set<NowListeningMessage> messageSet = new LinkedHashSet<>();
+        try (ResultSet rs = preparedStatement.executeQuery()) {
+            while (rs.next()) {
+                messageSet.add(toMessage(rs));
+            }
+            return Collections.unmodifiableSet(messageSet);
+        }
+    }
+
+    @Override
+    public Set<Long> getUsersWithEnabledMessages() throws SQLException {
+        return withReader("getUsersWithEnabledMessages", connection -> {
+            PreparedStatement preparedStatement = connection.prepare(
+                    "SELECT DISTINCT telegram_user FROM now_listening_messages WHERE enabled = 1"
+            );
+            Set<Long> userSet = new LinkedHashSet<>();
+            try (ResultSet rs = preparedStatement.executeQuery()) {
+                while (rs.next()) {
+                    userSet.add(rs.getLong("telegram_user"));
+                }
+            }
+            return Collections.unmodifiableSet(userSet);
+        });
+    }
+
+    @Override
+    public Optional<NowListeningMessage> getNowListeningMessage(long telegramUserId, String inlineMessageId) throws SQLException {
+        return withReader("getNowListeningMessage", connection -> {
+            PreparedStatement preparedStatement = connection.prepare(
+                    "SELECT * FROM now_listening_messages WHERE telegram_user = ? AND inline_message_id = ? LIMIT 1"
+            );
+            preparedStatement.setLong(1, telegramUserId);
+            preparedStatement.setString(2, inlineMessageId);
+            try (ResultSet rs = preparedStatement.executeQuery()) {
+                if (rs.next()) {
+                    return Optional.of(toMessage(rs));
+                }
+                return Optional.empty();
+            }
+        });
+    }
+
+    private NowListeningMessage toMessage(ResultSet rs) throws SQLException {
+        long id = rs.getLong("id");
+        long telegramUserId = rs.getLong("telegram_user");
+        String inlineMessageId = rs.getString("inline_message_id");
+        long timeAdded = rs.getLong("time_added");
+        boolean enabled = rs.getBoolean("enabled");
+        return new NowListeningMessage(id, telegramUserId, inlineMessageId, timeAdded, enabled);
+    }
+
+    @Override
+    public Set<NowListeningMessage> getEnabledMessagesToBeDisabled() throws SQLException {
+        return withReader("getEnabledMessagesToBeDisabled", connection -> {
+            PreparedStatement preparedStatement = connection.prepare(
+                    "SELECT * FROM now_listening_messages WHERE enabled = 1 AND time_added < ? AND permanent = 0"
+            );
+            preparedStatement.setLong(1, Instant.now().minus(ENABLED_CUTOFF).getEpochSecond());
+            return getAllMessages(preparedStatement);
+        });
+    }
+
+    @Override
+    public Set<NowListeningMessage> getExpiringMessages() throws SQLException {
+        return withReader("getExpiringMessages", connection -> {
+            PreparedStatement preparedStatement = connection.prepare(
+                    "SELECT * FROM now_listening_messages WHERE enabled = 1 AND permanent = 0"
+            );
+            return getAllMessages(preparedStatement);
+        });
+    }
+
+    @Override
+    public Set<NowListeningMessage> getExpiringMessages(long telegramUserId) throws SQLException {
+        return withReader("getUserExpiringMessages", connection -> {
+            PreparedStatement preparedStatement = connection.prepare(
+                    "SELECT * FROM now_listening_messages WHERE telegram_user = ? AND enabled = 1 AND permanent = 0"
+            );
+            preparedStatement.setLong(1, telegramUserId);
+            return getAllMessages(preparedStatement);
+        });
+    }
+
+    @Override
+    public void enableMessage(NowListeningMessage nowListeningMessage) throws SQLException {
+        long timeAdded = Instant.now().getEpochSecond();
+        withWriter("enableMessage", connection -> {
+            PreparedStatement preparedStatement = connection.prepare(
+                    "UPDATE now_listening_messages SET enabled = 1, time_added = ? " +
+                            "WHERE telegram_user = ? AND inline_message_id = ?"
+            );
+            preparedStatement.setLong(1, timeAdded);
+            preparedStatement.setLong(2, nowListeningMessage.getTelegramUserId());
+            preparedStatement.setString(3, nowListeningMessage.getInlineMessageId());
+            preparedStatement.execute();
+            return null;
+        });
+        messageEnabled(nowListeningMessage.getTelegramUserId(), nowListeningMessage.getInlineMessageId(), timeAdded, false);
+    }
+
+    @Override
+    public Set<NowListeningMessage> disableExpiredMessages(Collection<NowListeningMessage> candidates) throws SQLException {
+        if (candidates.isEmpty()) {
+            return Collections.emptySet();
+        }
+        List<NowListeningMessage> candidateList = new ArrayList<>(candidates);
+        long cutoff = Instant.now().minus(ENABLED_CUTOFF).getEpochSecond();
+        return withWriter("disableExpiredMessages", connection -> {
+            connection.setAutoCommit(false);
+            try {
+                PreparedStatement preparedStatement = connection.prepare(
+                        "UPDATE now_listening_messages SET enabled = 0 " +
+                                "WHERE inline_message_id = ? AND enabled = 1 AND permanent = 0 AND time_added < ?"
+                );
+                Set<NowListeningMessage> disabled = new LinkedHashSet<>();
+                for (int start = 0; start < candidateList.size(); start += BATCH_CHUNK_SIZE) {
+                    List<NowListeningMessage> chunk = candidateList.subList(start, Math.min(start + BATCH_CHUNK_SIZE, candidateList.size()));
+                    for (NowListeningMessage message : chunk) {
+                        preparedStatement.setString(1, message.getInlineMessageId());
+                        preparedStatement.setLong(2, cutoff);
+                        preparedStatement.addBatch();
+                    }
+                    int[] updated = preparedStatement.executeBatch();
+                    for (int i = 0; i < updated.length; i++) {
+                        if (updated[i] > 0) {
+                            disabled.add(chunk.get(i).withEnabled(false));
+                        }
+                    }
+                }
+                connection.commit();
+                return Collections.unmodifiableSet(disabled);
+            } catch (SQLException ex) {
+                connection.rollback();
+                throw ex;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        });
+    }
+
+    @Override
+    public void addNowListeningMessage(long telegramUserId, String inlineMessageId, boolean permanent) throws SQLException {
+        long timeAdded = Instant.now().getEpochSecond();
+        withWriter("addNowListeningMessage", connection -> {
+            PreparedStatement preparedStatement = connection.prepare(
+                    "INSERT INTO now_listening_messages " +
+                            "(telegram_user, inline_message_id, time_added, permanent) " +
+                            "VALUES (?, ?, ?, ?) " +
+                            "ON CONFLICT (inline_message_id) DO UPDATE SET " +
+                            "telegram_user = excluded.telegram_user, " +
+                            "time_added = excluded.time_added, " +
+                            "permanent = excluded.permanent, " +
+                            "enabled = 1"
+            );
+            preparedStatement.setLong(1, telegramUserId);
+            preparedStatement.setString(2, inlineMessageId);
+            preparedStatement.setLong(3, timeAdded);
+            preparedStatement.setBoolean(4, permanent);
+            preparedStatement.execute();
+            return null;
+        });
+        messageEnabled(telegramUserId, inlineMessageId, timeAdded, permanent);
+    }
+
+    @Override
+    public void deleteNowListeningMessage(NowListeningMessage nowListeningMessage) throws SQLException {
+        withWriter("deleteNowListeningMessage", connection -> {
+            PreparedStatement preparedStatement = connection.prepare(
+                    "DELETE FROM now_listening_messages " +
+                            "WHERE telegram_user = ? AND inline_message_id = ?"
+            );
+            preparedStatement.setLong(1, nowListeningMessage.getTelegramUserId());
+            preparedStatement.setString(2, nowListeningMessage.getInlineMessageId());
+            preparedStatement.execute();
+            return null;
+        });
+    }
+
+    @Override
+    public void deleteAllMessages(long telegramUserId) throws SQLException {
+        withWriter("deleteAllMessages", connection -> {
+            PreparedStatement preparedStatement = connection.prepare(
+                    "DELETE FROM now_listening_messages WHERE telegram_user = ?"
+            );
+            preparedStatement.setLong(1, telegramUserId);
+            preparedStatement.execute();
+            return null;
+        });
+    }
+
+    @Override
+    public Optional<Set<Long>> reload() throws SQLException {
+        // cached playing data is left alone, as it's what this node's users' messages last showed
+        synchronized (spotifyUserCache) {
+            Optional<Set<Long>> changed = getChangedUsers();
+            if (changed.isEmpty()) {
+                lastChangeSeq = getLatestChangeSeq();
+                loadSpotifyUsers();
+                return Optional.empty();
+            }
+
+            Set<Long> userIds = changed.get();
+            if (!userIds.isEmpty()) {
+                Map<Long, SpotifyUser> users = withReader("reloadSpotifyUsers", connection -> {
+                    PreparedStatement preparedStatement = connection.prepare(
+                            "SELECT * FROM spotify_user WHERE telegram_user = ?"
+                    );
+                    Map<Long, SpotifyUser> userMap = new HashMap<>();
+                    for (long telegramUserId : userIds) {
+                        preparedStatement.setLong(1, telegramUserId);
+                        try (ResultSet rs = preparedStatement.executeQuery()) {
+                            if (rs.next()) {
+                                userMap.put(telegramUserId, toUser(rs));
+                            }
+                        }
+                    }
+                    return userMap;
+                });
+                for (long telegramUserId : userIds) {
+                    SpotifyUser user = users.get(telegramUserId);
+                    if (user != null) {
+                        spotifyUserCache.put(user);
+                    } else {
+                        spotifyUserCache.remove(telegramUserId);
+                    }
+                }
+            }
+            return Optional.of(Collections.unmodifiableSet(userIds));
+        }
+    }
+
+    /**
+     * Reads the users changed since the last reload, moving lastChangeSeq past them.
+     *
+     * @return the changed users, or empty if some changes were pruned before we saw them
+     */
+    private Optional<Set<Long>> getChangedUsers() throws SQLException {
+        return withReader("getChangedUsers", connection -> {
+            PreparedStatement oldestStatement = connection.prepare(
+                    "SELECT MIN(seq) FROM user_changes"
+            );
+            try (ResultSet rs = oldestStatement.executeQuery()) {
+                // rows are only ever deleted by pruning, which always keeps the latest
+                if (rs.next() && rs.getLong(1) > lastChangeSeq + 1) {
+                    return Optional.empty();
+                }
+            }
+
+            PreparedStatement preparedStatement = connection.prepare(
+                    "SELECT seq, telegram_user FROM user_changes WHERE seq > ? ORDER BY seq"
+            );
+            preparedStatement.setLong(1, lastChangeSeq);
+            Set<Long> userSet = new LinkedHashSet<>();
+            long latestSeq = lastChangeSeq;
+            try (ResultSet rs = preparedStatement.executeQuery()) {
+                while (rs.next()) {
+                    latestSeq = rs.getLong("seq");
+                    userSet.add(rs.getLong("telegram_user"));
+                }
+            }
+            lastChangeSeq = latestSeq;
+            return Optional.of(userSet);
+        });
+    }
+
+    private long getLatestChangeSeq() throws SQLException {
+        return withReader("getLatestChangeSeq", connection -> {
+            PreparedStatement preparedStatement = connection.prepare(
+                    "SELECT MAX(seq) FROM user_changes"
+            );
+            try (ResultSet rs = preparedStatement.executeQuery()) {
+                // MAX of no rows is NULL, which reads as 0
+                return rs.next() ? rs.getLong(1) : 0L;
+            }
+        });
+    }
+
+    @Override
+    public void pruneChanges() throws SQLException {
+        withWriter("pruneChanges", connection -> {
+            // the latest row is kept, so a node that missed pruned rows can tell
+            PreparedStatement preparedStatement = connection.prepare(
+                    "DELETE FROM user_changes WHERE changed_at < ? " +
+                            "AND seq < (SELECT MAX(seq) FROM user_changes)"
+            );
+            preparedStatement.setLong(1, Instant.now().minus(CHANGE_RETENTION).getEpochSecond());
+            preparedStatement.execute();
+            return null;
+        });
+    }
+
+    @Override
+    public int heartbeatNode(String nodeId, long now, long leaseSeconds) throws SQLException {
+        return withWriter("heartbeatNode", connection -> {
+            connection.setAutoCommit(false);
+            try {
+                PreparedStatement upsertStatement = connection.prepare(
+                        "INSERT INTO shard_nodes (node_id, heartbeat) VALUES (?, ?) " +
+                                "ON CONFLICT (node_id) DO UPDATE SET heartbeat = excluded.heartbeat"
+                );
+                upsertStatement.setString(1, nodeId);
+                upsertStatement.setLong(2, now);
+                upsertStatement.execute();
+
+                PreparedStatement purgeStatement = connection.prepare(
+                        "DELETE FROM shard_nodes WHERE heartbeat < ?"
+                );
+                purgeStatement.setLong(1, now - leaseSeconds);
+                purgeStatement.execute();
+
+                int live = 0;
+                PreparedStatement countStatement = connection.prepare(
+                        "SELECT COUNT(*) FROM shard_nodes"
+                );
+                try (ResultSet rs = countStatement.executeQuery()) {
+                    if (rs.next()) {
+                        live = rs.getInt(1);
+                    }
+                }
+                connection.commit();
+                return live;
+            } catch (SQLException ex) {
+                connection.rollback();
+                throw ex;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        });
+    }
+
+    @Override
+    public Map<Integer, String> getShardHolders(long now) throws SQLException {
+        return withReader("getShardHolders", connection -> {
+            PreparedStatement preparedStatement = connection.prepare(
+                    "SELECT shard, node_id FROM shard_leases WHERE node_id IS NOT NULL AND expires_at > ?"
+            );
+            preparedStatement.setLong(1, now);
+            Map<Integer, String> holders = new HashMap<>();
+            try (ResultSet rs = preparedStatement.executeQuery()) {
+                while (rs.next()) {
+                    holders.put(rs.getInt("shard"), rs.getString("node_id"));
+                }
+            }
+            return holders;
+        });
+    }
+
+    @Override
+    public Set<Integer> claimShards(String nodeId, Collection<Integer> shards, long now, long leaseSeconds) throws SQLException {
+        return withWriter("claimShards", connection -> {
+            connection.setAutoCommit(false);
+            try {
+                // a lease only changes hands once it has expired, and SQLite's single writer makes each claim atomic
+                PreparedStatement claimStatement = connection.prepare(
+                        "INSERT INTO shard_leases (shard, node_id, expires_at) VALUES (?, ?, ?) " +
+                                "ON CONFLICT (shard) DO UPDATE SET " +
+                                "node_id = excluded.node_id, " +
+                                "expires_at = excluded.expires_at " +
+                                "WHERE shard_leases.node_id IS NULL " +
+                                "OR shard_leases.node_id = excluded.node_id " +
+                                "OR shard_leases.expires_at <= ?"
+                );
+                for (int shard : shards) {
+                    claimStatement.setInt(1, shard);
+                    claimStatement.setString(2, nodeId);
+                    claimStatement.setLong(3, now + leaseSeconds);
+                    claimStatement.setLong(4, now);
+                    claimStatement.addBatch();
+                }
+                claimStatement.executeBatch();
+
+                PreparedStatement heldStatement = connection.prepare(
+                        "SELECT shard FROM shard_leases WHERE node_id = ? AND expires_at > ?"
+                );
+                heldStatement.setString(1, nodeId);
+                heldStatement.setLong(2, now);
+                Set<Integer> held = new LinkedHashSet<>();
+                try (ResultSet rs = heldStatement.executeQuery()) {
+                    while (rs.next()) {
+                        held.add(rs.getInt("shard"));
+                    }
+                }
+                connection.commit();
+                return held;
+            } catch (SQLException ex) {
+                connection.rollback();
+                throw ex;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        });
+    }
+
+    @Override
+    public void releaseShards(String nodeId, Collection<Integer> shards) throws SQLException {
+        if (shards.isEmpty()) {
+            return;
+        }
+        withWriter("releaseShards", connection -> {
+            PreparedStatement preparedStatement = connection.prepare(
+                    "UPDATE shard_leases SET node_id = NULL, expires_at = 0 WHERE shard = ? AND node_id = ?"
+            );
+            for (int shard : shards) {
+                preparedStatement.setInt(1, shard);
+                preparedStatement.setString(2, nodeId);
+                preparedStatement.addBatch();
+            }
+            preparedStatement.executeBatch();
+            return null;
+        });
+    }
+
+    @Override
+    public void leaveShards(String nodeId) throws SQLException {
+        withWriter("leaveShards", connection -> {
+            connection.setAutoCommit(false);
+            try {
+                PreparedStatement releaseStatement = connection.prepare(
+                        "UPDATE shard_leases SET node_id = NULL, expires_at = 0 WHERE node_id = ?"
+                );
+                releaseStatement.setString(1, nodeId);
+                releaseStatement.execute();
+
+                PreparedStatement deleteStatement = connection.prepare(
+                        "DELETE FROM shard_nodes WHERE node_id = ?"
+                );
+                deleteStatement.setString(1, nodeId);
+                deleteStatement.execute();
+                connection.commit();
+            } catch (SQLException ex) {
+                connection.rollback();
+                throw ex;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+            return null;
+        });
+    }
+}
@@ -31,4 +31,8 @@ public class SpotifyPlayingData extends NLModel {
     @Expose private final long lastChecked;
     @Expose private final boolean playing;
 
+    // Only known for freshly fetched data, these are used to predict when the track will end.
+    private final long progressMs;
+    private final long durationMs;
+
 }
@@ -0,0 +1,28 @@
+package xyz.nickr.telegram.nowlistening.db.models;
+
+import java.util.Set;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.experimental.Wither;
+
+/**
+ * Everything the refresh cycle needs to know about a user, loaded in one go.
+ *
+ * @author Nick Robson
+ */
+@Data
+@Wither
+@AllArgsConstructor
+public class UserSnapshot {
+
+    private final SpotifyUser user;
+    // null if the user has no playing data yet
+    private final SpotifyPlayingData playingData;
+    // null if the user's messages haven't been loaded
+    private final Set<NowListeningMessage> enabledMessages;
+
+    public long getTelegramUserId() {
+        return user.getTelegramUserId();
+    }
+
+}
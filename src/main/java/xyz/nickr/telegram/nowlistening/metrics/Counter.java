@@ -0,0 +1,30 @@
+package xyz.nickr.telegram.nowlistening.metrics;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A count that only goes up.
+ *
+ * @author Nick Robson
+ */
+public class Counter implements Metrics.Child {
+
+    private final LongAdder count = new LongAdder();
+
+    public void inc() {
+        count.increment();
+    }
+
+    public void inc(long amount) {
+        count.add(amount);
+    }
+
+    @Override
+    public void writeTo(StringBuilder builder, String name, String[] labelNames, List<String> labelValues) {
+        builder.append(name);
+        Metrics.appendLabels(builder, labelNames, labelValues, null);
+        builder.append(' ').append(count.sum()).append('\n');
+    }
+
+}
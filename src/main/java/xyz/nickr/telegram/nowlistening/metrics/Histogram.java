@@ -0,0 +1,61 @@
+package xyz.nickr.telegram.nowlistening.metrics;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Durations in seconds, counted into fixed buckets from a millisecond to ten seconds.
+ *
+ * @author Nick Robson
+ */
+public class Histogram implements Metrics.Child {
+
+    private static final double[] BUCKETS = { 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+
+    // one more than BUCKETS, for everything above the last bucket
+    private final LongAdder[] counts = new LongAdder[BUCKETS.length + 1];
+    private final DoubleAdder sum = new DoubleAdder();
+
+    Histogram() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    public void observe(double seconds) {
+        int bucket = 0;
+        while (bucket < BUCKETS.length && seconds > BUCKETS[bucket]) {
+            bucket++;
+        }
+        counts[bucket].increment();
+        sum.add(seconds);
+    }
+
+    /**
+     * Records the time since the given {@link System#nanoTime()}.
+     */
+    public void observeSince(long startNanos) {
+        observe((System.nanoTime() - startNanos) / (double) TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @Override
+    public void writeTo(StringBuilder builder, String name, String[] labelNames, List<String> labelValues) {
+        long cumulative = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i].sum();
+            builder.append(name).append("_bucket");
+            String le = i < BUCKETS.length ? Metrics.format(BUCKETS[i]) : "+Inf";
+            Metrics.appendLabels(builder, labelNames, labelValues, le);
+            builder.append(' ').append(cumulative).append('\n');
+        }
+        builder.append(name).append("_sum");
+        Metrics.appendLabels(builder, labelNames, labelValues, null);
+        builder.append(' ').append(sum.sum()).append('\n');
+        builder.append(name).append("_count");
+        Metrics.appendLabels(builder, labelNames, labelValues, null);
+        builder.append(' ').append(cumulative).append('\n');
+    }
+
+}
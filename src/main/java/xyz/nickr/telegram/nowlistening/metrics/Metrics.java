@@ -0,0 +1,161 @@
+package xyz.nickr.telegram.nowlistening.metrics;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.DoubleSupplier;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * A minimal process-wide metrics registry, written out in the Prometheus text format.
+ *
+ * Metrics are registered once, usually as static fields of the class they
+ * measure, and registering the same name twice returns the existing metric.
+ *
+ * @author Nick Robson
+ */
+public final class Metrics {
+
+    private static final Map<String, Writable> REGISTRY = new ConcurrentSkipListMap<>();
+
+    private Metrics() {
+    }
+
+    interface Writable {
+
+        void writeTo(StringBuilder builder);
+
+    }
+
+    public static Family<Counter> counter(String name, String help, String... labelNames) {
+        return register(name, () -> new Family<>(name, help, "counter", labelNames, labels -> new Counter()));
+    }
+
+    public static Family<Histogram> histogram(String name, String help, String... labelNames) {
+        return register(name, () -> new Family<>(name, help, "histogram", labelNames, labels -> new Histogram()));
+    }
+
+    public static void gauge(String name, String help, DoubleSupplier value) {
+        register(name, () -> (Writable) builder -> {
+            header(builder, name, help, "gauge");
+            builder.append(name).append(' ').append(format(value.getAsDouble())).append('\n');
+        });
+    }
+
+    /**
+     * Registers a gauge whose label values are only known when it's read, e.g. one per worker.
+     */
+    public static void gauge(String name, String help, String labelName, Supplier<Map<String, ? extends Number>> values) {
+        register(name, () -> (Writable) builder -> {
+            header(builder, name, help, "gauge");
+            values.get().forEach((labelValue, value) -> {
+                builder.append(name);
+                appendLabels(builder, new String[]{ labelName }, List.of(labelValue), null);
+                builder.append(' ').append(format(value.doubleValue())).append('\n');
+            });
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends Writable> T register(String name, Supplier<T> factory) {
+        return (T) REGISTRY.computeIfAbsent(name, n -> factory.get());
+    }
+
+    public static String scrape() {
+        StringBuilder builder = new StringBuilder(8192);
+        REGISTRY.values().forEach(metric -> metric.writeTo(builder));
+        return builder.toString();
+    }
+
+    static void header(StringBuilder builder, String name, String help, String type) {
+        builder.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        builder.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    static void appendLabels(StringBuilder builder, String[] names, List<String> values, String le) {
+        if (names.length == 0 && le == null) {
+            return;
+        }
+        builder.append('{');
+        for (int i = 0; i < names.length; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(names[i]).append("=\"");
+            String value = values.get(i);
+            for (int j = 0; j < value.length(); j++) {
+                char c = value.charAt(j);
+                switch (c) {
+                    case '\\' -> builder.append("\\\\");
+                    case '"' -> builder.append("\\\"");
+                    case '\n' -> builder.append("\\n");
+                    default -> builder.append(c);
+                }
+            }
+            builder.append('"');
+        }
+        if (le != null) {
+            builder.append(names.length > 0 ? "," : "").append("le=\"").append(le).append('"');
+        }
+        builder.append('}');
+    }
+
+    static String format(double value) {
+        if (value == Double.POSITIVE_INFINITY) {
+            return "+Inf";
+        }
+        return value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value) : Double.toString(value);
+    }
+
+    /**
+     * A metric along with one child per combination of label values.
+     */
+    public static class Family<T extends Child> implements Writable {
+
+        private final String name;
+        private final String help;
+        private final String type;
+        private final String[] labelNames;
+        private final Function<List<String>, T> factory;
+        private final Map<List<String>, T> children = new ConcurrentHashMap<>();
+
+        private Family(String name, String help, String type, String[] labelNames, Function<List<String>, T> factory) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.labelNames = labelNames;
+            this.factory = factory;
+        }
+
+        public T labels(String... labelValues) {
+            if (labelValues.length != labelNames.length) {
+                throw new IllegalArgumentException(name + " expects labels " + Arrays.toString(labelNames));
+            }
+            return children.computeIfAbsent(List.of(labelValues), factory);
+        }
+
+        /**
+         * @return the only child of a metric without labels
+         */
+        public T get() {
+            return labels();
+        }
+
+        @Override
+        public void writeTo(StringBuilder builder) {
+            header(builder, name, help, type);
+            children.forEach((labelValues, child) -> child.writeTo(builder, name, labelNames, labelValues));
+        }
+
+    }
+
+    public interface Child {
+
+        void writeTo(StringBuilder builder, String name, String[] labelNames, List<String> labelValues);
+
+    }
+
+}
@@ -0,0 +1,160 @@
+package xyz.nickr.telegram.nowlistening.scheduler;
+
+import com.google.gson.JsonObject;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import xyz.nickr.telegram.nowlistening.db.DatabaseController;
+import xyz.nickr.telegram.nowlistening.util.ConfigUtil;
+
+/**
+ * Tracks which users currently have someone looking at their playing data.
+ *
+ * A user is in the audience while they have at least one enabled message,
+ * or for a short while after they've sent an inline query. When audience
+ * polling is enabled, users outside of it aren't polled at all.
+ *
+ * @author Nick Robson
+ */
+public class ActiveAudience {
+
+    private final DatabaseController databaseController;
+    private final boolean enabled;
+    private final long inlineQueryTtlMillis;
+
+    private final Set<Long> usersWithMessages = ConcurrentHashMap.newKeySet();
+    private final Map<Long, Long> recentInlineQueries = new ConcurrentHashMap<>();
+    private final List<LongConsumer> joinListeners = new CopyOnWriteArrayList<>();
+
+    public ActiveAudience(JsonObject config, DatabaseController databaseController) {
+        JsonObject polling = ConfigUtil.getObject(config, "polling");
+
+        this.databaseController = databaseController;
+        this.enabled = ConfigUtil.getBoolean(polling, "audience_only", false);
+        this.inlineQueryTtlMillis = TimeUnit.SECONDS.toMillis(ConfigUtil.getLong(polling, "inline_query_audience_seconds", 300L));
+
+        if (enabled) {
+            try {
+                usersWithMessages.addAll(databaseController.getUsersWithEnabledMessages());
+            } catch (SQLException ex) {
+                throw new RuntimeException("Failed to load the active audience", ex);
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Adds a listener that is called with the telegram user id of each user who joins the audience.
+     */
+    public void addJoinListener(LongConsumer listener) {
+        joinListeners.add(Objects.requireNonNull(listener, "listener can't be null"));
+    }
+
+    /**
+     * @return whether the given user should be polled
+     */
+    public boolean contains(long telegramUserId) {
+        if (!enabled || usersWithMessages.contains(telegramUserId)) {
+            return true;
+        }
+        Long expiresAt = recentInlineQueries.get(telegramUserId);
+        if (expiresAt == null) {
+            return false;
+        }
+        if (expiresAt < System.currentTimeMillis()) {
+            recentInlineQueries.remove(telegramUserId, expiresAt);
+            return false;
+        }
+        return true;
+    }
+
+    public void onInlineQuery(long telegramUserId) {
+        if (!enabled) {
+            return;
+        }
+        boolean joined = !contains(telegramUserId);
+        recentInlineQueries.put(telegramUserId, System.currentTimeMillis() + inlineQueryTtlMillis);
+        if (joined) {
+            joined(telegramUserId);
+        }
+    }
+
+    public void onMessageEnabled(long telegramUserId) {
+        if (!enabled) {
+            return;
+        }
+        boolean joined = !contains(telegramUserId);
+        usersWithMessages.add(telegramUserId);
+        if (joined) {
+            joined(telegramUserId);
+        }
+    }
+
+    /**
+     * Re-reads which of the changed users have enabled messages, to pick up messages
+     * enabled or disabled by other nodes sharing the database, or which users have
+     * them at all if it isn't known who changed.
+     */
+    public void reload(Optional<Set<Long>> changedUsers) {
+        if (!enabled) {
+            return;
+        }
+        try {
+            if (changedUsers.isEmpty()) {
+                Set<Long> userIds = databaseController.getUsersWithEnabledMessages();
+                usersWithMessages.retainAll(userIds);
+                for (long telegramUserId : userIds) {
+                    onMessageEnabled(telegramUserId);
+                }
+                return;
+            }
+            for (long telegramUserId : changedUsers.get()) {
+                if (databaseController.getEnabledNowListeningMessages(telegramUserId).isEmpty()) {
+                    usersWithMessages.remove(telegramUserId);
+                } else {
+                    onMessageEnabled(telegramUserId);
+                }
+            }
+        } catch (SQLException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Re-checks whether the given user still has any enabled messages,
+     * to be called after their messages are disabled or deleted.
+     */
+    public void onMessagesRemoved(long telegramUserId) {
+        if (!enabled) {
+            return;
+        }
+        try {
+            if (databaseController.getEnabledNowListeningMessages(telegramUserId).isEmpty()) {
+                usersWithMessages.remove(telegramUserId);
+            }
+        } catch (SQLException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    private void joined(long telegramUserId) {
+        joinListeners.forEach(listener -> {
+            try {
+                listener.accept(telegramUserId);
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        });
+    }
+
+}
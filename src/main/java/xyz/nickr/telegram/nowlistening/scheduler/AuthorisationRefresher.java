@@ -1,5 +1,6 @@
 package xyz.nickr.telegram.nowlistening.scheduler;
 
+import com.google.gson.JsonObject;
 import com.wrapper.spotify.SpotifyApi;
 import com.wrapper.spotify.exceptions.SpotifyWebApiException;
 import com.wrapper.spotify.exceptions.detailed.BadRequestException;
@@ -7,61 +8,134 @@ import com.wrapper.spotify.model_objects.credentials.AuthorizationCodeCredential
 
 import java.io.IOException;
 import java.sql.SQLException;
+import java.time.Instant;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-import lombok.AllArgsConstructor;
+import lombok.Getter;
 import xyz.nickr.telegram.nowlistening.db.DatabaseController;
 import xyz.nickr.telegram.nowlistening.db.models.SpotifyUser;
 import xyz.nickr.telegram.nowlistening.spotify.SpotifyController;
+import xyz.nickr.telegram.nowlistening.spotify.SpotifyGovernor.Priority;
+import xyz.nickr.telegram.nowlistening.util.ConfigUtil;
+import xyz.nickr.telegram.nowlistening.util.NamedThreadFactory;
 
 /**
+ * Renews access tokens before they expire, so users never drop out of polling.
+ *
+ * Each user is renewed somewhere between the margin and the margin plus jitter
+ * before their token expires, at an offset derived from their id so renewals
+ * don't bunch up. Renewals run on a bounded pool, and the old token remains
+ * in use until the new one has been stored. Only users this node's
+ * {@link ShardCoordinator} owns are renewed.
+ *
  * @author Nick Robson
  */
-@AllArgsConstructor
 public class AuthorisationRefresher implements Runnable {
 
     private final DatabaseController databaseController;
     private final SpotifyController spotifyController;
+    private final ActiveAudience activeAudience;
+    private final ShardCoordinator shardCoordinator;
+    private final long marginSeconds;
+    private final long jitterSeconds;
+    @Getter
+    private final long checkIntervalSeconds;
+    private final ExecutorService executor;
+    private final Set<Long> refreshing = ConcurrentHashMap.newKeySet();
+
+    public AuthorisationRefresher(JsonObject config, DatabaseController databaseController, SpotifyController spotifyController, ActiveAudience activeAudience, ShardCoordinator shardCoordinator) {
+        JsonObject auth = ConfigUtil.getObject(config, "authorisation");
+
+        this.databaseController = databaseController;
+        this.spotifyController = spotifyController;
+        this.activeAudience = activeAudience;
+        this.shardCoordinator = shardCoordinator;
+        this.marginSeconds = Math.max(0, ConfigUtil.getLong(auth, "refresh_margin_seconds", 300L));
+        this.jitterSeconds = Math.max(0, ConfigUtil.getLong(auth, "refresh_jitter_seconds", 240L));
+        this.checkIntervalSeconds = Math.max(1, ConfigUtil.getLong(auth, "check_interval_seconds", 15L));
+        this.executor = Executors.newFixedThreadPool(
+                Math.max(1, ConfigUtil.getInt(auth, "refresh_concurrency", 4)),
+                new NamedThreadFactory("AuthorisationRefresher"));
+    }
 
     @Override
     public void run() {
+        long start = System.nanoTime();
         try {
-            Set<SpotifyUser> userSet = databaseController.getUsersRequiringReauthorisation();
+            long now = Instant.now().getEpochSecond();
+            Set<SpotifyUser> userSet = databaseController.getUsersExpiringBefore(now + marginSeconds + jitterSeconds);
             for (SpotifyUser user : userSet) {
-                try {
-                    AuthorizationCodeCredentials credentials = SpotifyApi.builder()
-                            .setClientId(spotifyController.getApi().getClientId())
-                            .setClientSecret(spotifyController.getApi().getClientSecret())
-                            .setRefreshToken(user.getRefreshToken()).build()
-                            .authorizationCodeRefresh().build().execute();
-
-                    spotifyController.updateSpotifyUser(user.getTelegramUserId(), credentials);
-                    System.out.format("[NowListening] Refreshed tokens for %d.\n", user.getTelegramUserId());
-                } catch (BadRequestException ex) {
-                    if ("Refresh token revoked".equals(ex.getMessage())) {
-                        try {
-                            databaseController.deleteSpotifyUser(user.getTelegramUserId());
-                        } catch (SQLException e) {
-                            e.printStackTrace();
-                        }
-                        try {
-                            databaseController.deletePlayingData(user.getTelegramUserId());
-                        } catch (SQLException e) {
-                            e.printStackTrace();
-                        }
+                if (user.getExpiryDate() - marginSeconds - jitter(user.getTelegramUserId()) > now
+                        || !shardCoordinator.owns(user.getTelegramUserId())) {
+                    continue;
+                }
+                if (refreshing.add(user.getTelegramUserId())) {
+                    JobMetrics.USERS.labels("authorisation_refresher", "queued").inc();
+                    executor.execute(() -> {
                         try {
-                            databaseController.deleteAllMessages(user.getTelegramUserId());
-                        } catch (SQLException e) {
-                            e.printStackTrace();
+                            refresh(user);
+                        } finally {
+                            refreshing.remove(user.getTelegramUserId());
                         }
-                    }
-                } catch (SQLException | SpotifyWebApiException | IOException ex) {
-                    ex.printStackTrace();
+                    });
                 }
             }
         } catch (Exception ex) {
             ex.printStackTrace();
         }
+        JobMetrics.RUN_SECONDS.labels("authorisation_refresher").observeSince(start);
+    }
+
+    private long jitter(long telegramUserId) {
+        if (jitterSeconds == 0) {
+            return 0;
+        }
+        // spread ids that are close together across the whole window
+        long mixed = telegramUserId * 0x9E3779B97F4A7C15L;
+        return Math.floorMod(mixed ^ (mixed >>> 32), jitterSeconds + 1);
+    }
+
+    private void refresh(SpotifyUser user) {
+        try {
+            SpotifyApi api = spotifyController.getApi();
+            AuthorizationCodeCredentials credentials = spotifyController.getGovernor().execute(Priority.BACKGROUND, () -> api
+                    .authorizationCodeRefresh(api.getClientId(), api.getClientSecret(), user.getRefreshToken())
+                    .build().execute());
+
+            if (!spotifyController.refreshSpotifyUser(user.getTelegramUserId(), credentials)) {
+                // deleted while we were refreshing, e.g. by /gdpr
+                JobMetrics.USERS.labels("authorisation_refresher", "deleted").inc();
+                return;
+            }
+            JobMetrics.USERS.labels("authorisation_refresher", "refreshed").inc();
+            System.out.format("[NowListening] Refreshed tokens for %d.\n", user.getTelegramUserId());
+        } catch (BadRequestException ex) {
+            JobMetrics.USERS.labels("authorisation_refresher", "failed").inc();
+            if ("Refresh token revoked".equals(ex.getMessage())) {
+                try {
+                    databaseController.deleteSpotifyUser(user.getTelegramUserId());
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+                try {
+                    databaseController.deletePlayingData(user.getTelegramUserId());
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+                try {
+                    databaseController.deleteAllMessages(user.getTelegramUserId());
+                    activeAudience.onMessagesRemoved(user.getTelegramUserId());
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+            }
+        } catch (SQLException | SpotifyWebApiException | IOException ex) {
+            JobMetrics.USERS.labels("authorisation_refresher", "failed").inc();
+            ex.printStackTrace();
+        }
     }
 
 }
@@ -0,0 +1,24 @@
+package xyz.nickr.telegram.nowlistening.scheduler;
+
+import xyz.nickr.telegram.nowlistening.metrics.Counter;
+import xyz.nickr.telegram.nowlistening.metrics.Histogram;
+import xyz.nickr.telegram.nowlistening.metrics.Metrics;
+
+/**
+ * Metrics shared by the scheduled jobs, labelled by job.
+ *
+ * @author Nick Robson
+ */
+final class JobMetrics {
+
+    static final Metrics.Family<Histogram> RUN_SECONDS = Metrics.histogram(
+            "nowlistening_job_run_seconds", "Time taken by each run of a scheduled job", "job");
+    static final Metrics.Family<Counter> USERS = Metrics.counter(
+            "nowlistening_job_users_total", "Users processed by scheduled jobs, by outcome", "job", "result");
+    static final Metrics.Family<Counter> MESSAGES_DISABLED = Metrics.counter(
+            "nowlistening_messages_disabled_total", "Expired messages disabled, by the job that found them", "job");
+
+    private JobMetrics() {
+    }
+
+}
@@ -1,26 +1,39 @@
 package xyz.nickr.telegram.nowlistening.scheduler;
 
 import java.sql.SQLException;
+import java.util.Set;
 import lombok.AllArgsConstructor;
+import xyz.nickr.telegram.nowlistening.db.models.NowListeningMessage;
 import xyz.nickr.telegram.nowlistening.telegram.TelegramController;
 
 /**
+ * Disables any expired messages that {@link MessageExpiry} missed,
+ * e.g. because they expired while the bot was down.
+ *
  * @author Nick Robson
  */
 @AllArgsConstructor
 public class MessageDisabler implements Runnable {
 
     private TelegramController telegramController;
+    private ActiveAudience activeAudience;
 
     @Override
     public void run() {
+        long start = System.nanoTime();
         try {
-            int disabled = telegramController.updateDisabledNowListeningMessages();
-            if (disabled > 0) {
-                System.out.format("[NowListening] Disabled %d expired messages.\n", disabled);
+            Set<NowListeningMessage> disabled = telegramController.updateDisabledNowListeningMessages();
+            JobMetrics.MESSAGES_DISABLED.labels("message_disabler").inc(disabled.size());
+            if (!disabled.isEmpty()) {
+                System.out.format("[NowListening] Reconciliation disabled %d expired messages.\n", disabled.size());
+                disabled.stream()
+                        .map(NowListeningMessage::getTelegramUserId)
+                        .distinct()
+                        .forEach(activeAudience::onMessagesRemoved);
             }
         } catch (SQLException ex) {
             ex.printStackTrace();
         }
+        JobMetrics.RUN_SECONDS.labels("message_disabler").observeSince(start);
     }
 }
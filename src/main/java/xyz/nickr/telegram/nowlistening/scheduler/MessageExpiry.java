@@ -0,0 +1,164 @@
+package xyz.nickr.telegram.nowlistening.scheduler;
+
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import lombok.AllArgsConstructor;
+import xyz.nickr.telegram.nowlistening.db.DatabaseController;
+import xyz.nickr.telegram.nowlistening.db.models.NowListeningMessage;
+import xyz.nickr.telegram.nowlistening.metrics.Metrics;
+import xyz.nickr.telegram.nowlistening.telegram.TelegramController;
+import xyz.nickr.telegram.nowlistening.util.NamedThreadFactory;
+
+/**
+ * Disables each non-permanent message as soon as it expires.
+ *
+ * The expiry times of all enabled messages are loaded at startup and kept
+ * up to date as messages are added and re-enabled. Whether a message is
+ * still enabled and expired is checked by the database when it's disabled,
+ * so messages that were deleted or re-enabled in the meantime are left alone.
+ * Only messages of users this node's {@link ShardCoordinator} owns are expired.
+ *
+ * @author Nick Robson
+ */
+public class MessageExpiry {
+
+    private final DatabaseController databaseController;
+    private final TelegramController telegramController;
+    private final ActiveAudience activeAudience;
+    private final ShardCoordinator shardCoordinator;
+
+    private final DelayQueue<Expiring> queue = new DelayQueue<>();
+    // the latest expiry of each message, so older queue entries can be skipped
+    private final Map<String, Expiring> latest = new ConcurrentHashMap<>();
+
+    public MessageExpiry(DatabaseController databaseController, TelegramController telegramController, ActiveAudience activeAudience, ShardCoordinator shardCoordinator) {
+        this.databaseController = databaseController;
+        this.telegramController = telegramController;
+        this.activeAudience = activeAudience;
+        this.shardCoordinator = shardCoordinator;
+    }
+
+    public void start() throws SQLException {
+        Metrics.gauge("nowlistening_messages_expiring", "Enabled messages waiting to expire", () -> latest.size());
+        // listen first, so nothing enabled while loading is missed
+        databaseController.addMessageListener(this::onMessageEnabled);
+        reload();
+        new NamedThreadFactory("MessageExpiry").newThread(this::work).start();
+    }
+
+    /**
+     * Schedules every expiring message this node owns that isn't already scheduled,
+     * e.g. after gaining shards or to pick up messages enabled by another node.
+     */
+    public void reload() throws SQLException {
+        for (NowListeningMessage message : databaseController.getExpiringMessages()) {
+            schedule(message.getTelegramUserId(), message.getInlineMessageId(), message.getTimeAdded());
+        }
+    }
+
+    /**
+     * Schedules the expiring messages of the given users that aren't already scheduled,
+     * to pick up messages another node enabled for them.
+     */
+    public void reload(Collection<Long> telegramUserIds) throws SQLException {
+        for (long telegramUserId : telegramUserIds) {
+            if (!shardCoordinator.owns(telegramUserId)) {
+                continue;
+            }
+            for (NowListeningMessage message : databaseController.getExpiringMessages(telegramUserId)) {
+                schedule(message.getTelegramUserId(), message.getInlineMessageId(), message.getTimeAdded());
+            }
+        }
+    }
+
+    private void onMessageEnabled(long telegramUserId, String inlineMessageId, long timeAdded, boolean permanent) {
+        if (permanent) {
+            latest.remove(inlineMessageId);
+        } else {
+            schedule(telegramUserId, inlineMessageId, timeAdded);
+        }
+    }
+
+    private void schedule(long telegramUserId, String inlineMessageId, long timeAdded) {
+        if (!shardCoordinator.owns(telegramUserId)) {
+            return;
+        }
+        // messages are disabled once time_added is strictly before the cutoff
+        long expiresAt = TimeUnit.SECONDS.toMillis(Instant.ofEpochSecond(timeAdded).plus(DatabaseController.ENABLED_CUTOFF).getEpochSecond() + 1);
+        Expiring expiring = new Expiring(telegramUserId, inlineMessageId, expiresAt);
+        Expiring current = latest.merge(inlineMessageId, expiring,
+                (existing, replacement) -> replacement.expiresAt > existing.expiresAt ? replacement : existing);
+        if (current == expiring) {
+            queue.add(expiring);
+        }
+    }
+
+    private void work() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                List<NowListeningMessage> due = new ArrayList<>();
+                Expiring expiring = queue.take();
+                do {
+                    if (latest.remove(expiring.inlineMessageId, expiring)) {
+                        due.add(NowListeningMessage.builder()
+                                .telegramUserId(expiring.telegramUserId)
+                                .inlineMessageId(expiring.inlineMessageId)
+                                .enabled(true)
+                                .build());
+                    }
+                } while ((expiring = queue.poll()) != null);
+
+                if (!due.isEmpty()) {
+                    expire(due);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    private void expire(List<NowListeningMessage> due) throws SQLException {
+        long start = System.nanoTime();
+        Set<NowListeningMessage> disabled = telegramController.disableNowListeningMessages(due);
+        JobMetrics.RUN_SECONDS.labels("message_expiry").observeSince(start);
+        JobMetrics.MESSAGES_DISABLED.labels("message_expiry").inc(disabled.size());
+        if (!disabled.isEmpty()) {
+            System.out.format("[NowListening] Disabled %d expired messages.\n", disabled.size());
+            disabled.stream()
+                    .map(NowListeningMessage::getTelegramUserId)
+                    .distinct()
+                    .forEach(activeAudience::onMessagesRemoved);
+        }
+    }
+
+    @AllArgsConstructor
+    private static class Expiring implements Delayed {
+
+        private final long telegramUserId;
+        private final String inlineMessageId;
+        private final long expiresAt;
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(expiresAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(getDelay(TimeUnit.MILLISECONDS), other.getDelay(TimeUnit.MILLISECONDS));
+        }
+
+    }
+
+}
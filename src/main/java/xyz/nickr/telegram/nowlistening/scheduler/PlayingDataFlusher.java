@@ -0,0 +1,26 @@
+package xyz.nickr.telegram.nowlistening.scheduler;
+
+import java.sql.SQLException;
+import lombok.AllArgsConstructor;
+import xyz.nickr.telegram.nowlistening.db.DatabaseController;
+
+/**
+ * Writes changed playing data back to the database.
+ *
+ * @author Nick Robson
+ */
+@AllArgsConstructor
+public class PlayingDataFlusher implements Runnable {
+
+    private final DatabaseController databaseController;
+
+    @Override
+    public void run() {
+        try {
+            databaseController.flushPlayingData();
+        } catch (SQLException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+}
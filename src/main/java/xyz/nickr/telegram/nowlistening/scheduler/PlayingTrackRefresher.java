@@ -1,34 +1,127 @@
 package xyz.nickr.telegram.nowlistening.scheduler;
 
-import java.util.Set;
-import lombok.AllArgsConstructor;
+import com.google.gson.JsonObject;
+import com.wrapper.spotify.exceptions.detailed.TooManyRequestsException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 import xyz.nickr.telegram.nowlistening.db.DatabaseController;
-import xyz.nickr.telegram.nowlistening.db.models.SpotifyUser;
+import xyz.nickr.telegram.nowlistening.db.models.SpotifyPlayingData;
+import xyz.nickr.telegram.nowlistening.db.models.UserSnapshot;
 import xyz.nickr.telegram.nowlistening.spotify.SpotifyController;
+import xyz.nickr.telegram.nowlistening.spotify.SpotifyGovernor.Priority;
+import xyz.nickr.telegram.nowlistening.util.ConfigUtil;
+import xyz.nickr.telegram.nowlistening.util.NamedThreadFactory;
 
 /**
+ * Refreshes the playing data of every user with a valid access token.
+ *
+ * Users are fanned out over a fixed-size pool so a cycle takes roughly
+ * (user count / concurrency) Spotify round-trips, and any refreshes still
+ * running when the cycle deadline passes are cancelled. Users outside of
+ * the {@link ActiveAudience}, or owned by another node, are skipped.
+ *
  * @author Nick Robson
  */
-@AllArgsConstructor
 public class PlayingTrackRefresher implements Runnable {
 
     private final DatabaseController databaseController;
     private final SpotifyController spotifyController;
+    private final ActiveAudience activeAudience;
+    private final ShardCoordinator shardCoordinator;
+    private final ExecutorService executor;
+    private final long deadlineMillis;
+
+    public PlayingTrackRefresher(JsonObject config, DatabaseController databaseController, SpotifyController spotifyController, ActiveAudience activeAudience, ShardCoordinator shardCoordinator) {
+        JsonObject scheduler = ConfigUtil.getObject(config, "scheduler");
+
+        int concurrency = ConfigUtil.getInt(scheduler, "refresh_concurrency", 8);
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("scheduler.refresh_concurrency must be at least 1");
+        }
+
+        this.databaseController = databaseController;
+        this.spotifyController = spotifyController;
+        this.activeAudience = activeAudience;
+        this.shardCoordinator = shardCoordinator;
+        this.executor = Executors.newFixedThreadPool(concurrency, new NamedThreadFactory("PlayingTrackRefresher"));
+        this.deadlineMillis = TimeUnit.SECONDS.toMillis(ConfigUtil.getLong(scheduler, "refresh_deadline_seconds", 12L));
+    }
 
     @Override
     public void run() {
         try {
-            Set<SpotifyUser> userSet = databaseController.getUsersWithValidAccess();
-            for (SpotifyUser user : userSet) {
-                try {
-                    spotifyController.updatePlayingData(user);
-                } catch (Exception ex) {
-                    ex.printStackTrace();
-                }
+            long start = System.currentTimeMillis();
+            List<UserSnapshot> snapshots = databaseController.getRefreshSnapshot().stream()
+                    .filter(snapshot -> activeAudience.contains(snapshot.getTelegramUserId()))
+                    .filter(snapshot -> shardCoordinator.owns(snapshot.getTelegramUserId()))
+                    .collect(Collectors.toList());
+            Map<Long, Optional<SpotifyPlayingData>> refreshed = refresh(snapshots);
+            if (!snapshots.isEmpty()) {
+                System.out.format("[NowListening] Refreshed %d/%d users in %dms.\n",
+                        refreshed.size(), snapshots.size(), System.currentTimeMillis() - start);
             }
         } catch (Exception ex) {
             ex.printStackTrace();
         }
     }
 
+    /**
+     * Refreshes the given users in parallel, waiting at most until the cycle deadline.
+     *
+     * @return the new playing data of every user that was successfully refreshed, keyed by telegram user id
+     */
+    public Map<Long, Optional<SpotifyPlayingData>> refresh(Collection<UserSnapshot> snapshots) throws InterruptedException {
+        long start = System.nanoTime();
+        List<UserSnapshot> snapshotList = new ArrayList<>(snapshots);
+        List<Callable<Optional<SpotifyPlayingData>>> tasks = new ArrayList<>(snapshotList.size());
+        for (UserSnapshot snapshot : snapshotList) {
+            tasks.add(() -> spotifyController.updatePlayingData(snapshot, Priority.BACKGROUND));
+        }
+
+        List<Future<Optional<SpotifyPlayingData>>> futures = executor.invokeAll(tasks, deadlineMillis, TimeUnit.MILLISECONDS);
+
+        Map<Long, Optional<SpotifyPlayingData>> refreshed = new LinkedHashMap<>();
+        int missedDeadline = 0;
+        int rateLimited = 0;
+        for (int i = 0; i < futures.size(); i++) {
+            long telegramUserId = snapshotList.get(i).getTelegramUserId();
+            try {
+                refreshed.put(telegramUserId, futures.get(i).get());
+            } catch (CancellationException ex) {
+                missedDeadline++;
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof TooManyRequestsException) {
+                    // the governor has already logged this and paused
+                    rateLimited++;
+                } else {
+                    ex.getCause().printStackTrace();
+                }
+            }
+        }
+        JobMetrics.RUN_SECONDS.labels("playing_track_refresher").observeSince(start);
+        JobMetrics.USERS.labels("playing_track_refresher", "refreshed").inc(refreshed.size());
+        JobMetrics.USERS.labels("playing_track_refresher", "missed_deadline").inc(missedDeadline);
+        JobMetrics.USERS.labels("playing_track_refresher", "rate_limited").inc(rateLimited);
+        JobMetrics.USERS.labels("playing_track_refresher", "failed").inc(futures.size() - refreshed.size() - missedDeadline - rateLimited);
+        if (rateLimited > 0) {
+            System.err.format("[NowListening] %d refreshes were rate limited by Spotify.\n", rateLimited);
+        }
+        if (missedDeadline > 0) {
+            System.err.format("[NowListening] %d refreshes missed the %dms cycle deadline.\n", missedDeadline, deadlineMillis);
+        }
+        return refreshed;
+    }
+
 }
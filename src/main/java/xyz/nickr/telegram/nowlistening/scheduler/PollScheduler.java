@@ -0,0 +1,216 @@
+package xyz.nickr.telegram.nowlistening.scheduler;
+
+import com.google.gson.JsonObject;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+import xyz.nickr.telegram.nowlistening.db.DatabaseController;
+import xyz.nickr.telegram.nowlistening.db.models.SpotifyPlayingData;
+import xyz.nickr.telegram.nowlistening.db.models.SpotifyUser;
+import xyz.nickr.telegram.nowlistening.db.models.UserSnapshot;
+import xyz.nickr.telegram.nowlistening.util.ConfigUtil;
+
+/**
+ * Polls each user on their own schedule rather than everyone every 15 seconds.
+ *
+ * Users are kept in a priority queue ordered by when they're next due.
+ * While a user is playing music they're polled shortly after the current
+ * track should end, but at least every 15 seconds by default so skips and
+ * pauses show as quickly as before. While they aren't playing they're
+ * polled with an exponential backoff. Only users in the
+ * {@link ActiveAudience} that this node's {@link ShardCoordinator} owns
+ * are scheduled.
+ *
+ * @author Nick Robson
+ */
+public class PollScheduler implements Runnable {
+
+    private final DatabaseController databaseController;
+    private final PlayingTrackRefresher playingTrackRefresher;
+    private final ActiveAudience activeAudience;
+    private final ShardCoordinator shardCoordinator;
+
+    @Getter
+    private final long tickMillis;
+    private final long syncIntervalMillis;
+    private final long minIntervalMillis;
+    private final long maxPlayingIntervalMillis;
+    private final long trackEndGraceMillis;
+    private final long idleBaseMillis;
+    private final long idleMaxMillis;
+
+    private final PriorityQueue<PollEntry> queue = new PriorityQueue<>(Comparator.comparingLong(PollEntry::getDueAt));
+    private final Map<Long, PollEntry> entries = new HashMap<>();
+    private volatile long lastSync;
+
+    public PollScheduler(JsonObject config, DatabaseController databaseController, PlayingTrackRefresher playingTrackRefresher, ActiveAudience activeAudience, ShardCoordinator shardCoordinator) {
+        JsonObject polling = ConfigUtil.getObject(config, "polling");
+
+        this.databaseController = databaseController;
+        this.playingTrackRefresher = playingTrackRefresher;
+        this.activeAudience = activeAudience;
+        this.shardCoordinator = shardCoordinator;
+        this.tickMillis = ConfigUtil.getLong(polling, "tick_millis", 1000L);
+        this.syncIntervalMillis = TimeUnit.SECONDS.toMillis(ConfigUtil.getLong(polling, "sync_interval_seconds", 30L));
+        this.minIntervalMillis = TimeUnit.SECONDS.toMillis(ConfigUtil.getLong(polling, "min_interval_seconds", 5L));
+        this.maxPlayingIntervalMillis = TimeUnit.SECONDS.toMillis(ConfigUtil.getLong(polling, "max_playing_interval_seconds", 15L));
+        this.trackEndGraceMillis = ConfigUtil.getLong(polling, "track_end_grace_millis", 1500L);
+        this.idleBaseMillis = TimeUnit.SECONDS.toMillis(ConfigUtil.getLong(polling, "idle_base_seconds", 15L));
+        this.idleMaxMillis = TimeUnit.SECONDS.toMillis(ConfigUtil.getLong(polling, "idle_max_seconds", 600L));
+    }
+
+    public static boolean isEnabled(JsonObject config) {
+        return !"fixed".equals(ConfigUtil.getString(ConfigUtil.getObject(config, "polling"), "mode", "adaptive"));
+    }
+
+    @Override
+    public void run() {
+        try {
+            long now = System.currentTimeMillis();
+            if (now - lastSync >= syncIntervalMillis) {
+                sync(now);
+                lastSync = now;
+            }
+
+            List<PollEntry> due = takeDue(now);
+            if (due.isEmpty()) {
+                return;
+            }
+
+            List<UserSnapshot> snapshots = new ArrayList<>(due.size());
+            long nowSeconds = Instant.now().getEpochSecond();
+            for (PollEntry entry : due) {
+                Optional<SpotifyUser> user = databaseController.getSpotifyUser(entry.getTelegramUserId());
+                if (user.isPresent() && user.get().getExpiryDate() > nowSeconds && shardCoordinator.owns(entry.getTelegramUserId())) {
+                    SpotifyPlayingData playingData = databaseController.getPlayingData(entry.getTelegramUserId()).orElse(null);
+                    snapshots.add(new UserSnapshot(user.get(), playingData, null));
+                }
+            }
+
+            Map<Long, Optional<SpotifyPlayingData>> refreshed = playingTrackRefresher.refresh(snapshots);
+
+            long polledAt = System.currentTimeMillis();
+            for (PollEntry entry : due) {
+                reschedule(entry, refreshed.get(entry.getTelegramUserId()), polledAt);
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Makes the given user due immediately, e.g. because someone is now looking at their messages.
+     */
+    public synchronized void pollSoon(long telegramUserId) {
+        PollEntry entry = entries.get(telegramUserId);
+        if (entry == null) {
+            entry = new PollEntry(telegramUserId, 0L, 0, false);
+            entries.put(telegramUserId, entry);
+        } else if (entry.isQueued()) {
+            queue.remove(entry);
+        }
+        entry.setDueAt(0L);
+        entry.setIdlePolls(0);
+        entry.setQueued(true);
+        queue.add(entry);
+    }
+
+    /**
+     * Makes the next tick re-read which users should be scheduled, e.g. because this node's shards changed.
+     */
+    public void syncSoon() {
+        lastSync = 0L;
+    }
+
+    private void sync(long now) throws Exception {
+        Set<Long> userIds = new HashSet<>();
+        for (SpotifyUser user : databaseController.getUsersWithValidAccess()) {
+            if (activeAudience.contains(user.getTelegramUserId()) && shardCoordinator.owns(user.getTelegramUserId())) {
+                userIds.add(user.getTelegramUserId());
+            }
+        }
+
+        synchronized (this) {
+            entries.values().removeIf(entry -> {
+                if (!userIds.contains(entry.getTelegramUserId())) {
+                    if (entry.isQueued()) {
+                        queue.remove(entry);
+                    }
+                    return true;
+                }
+                return false;
+            });
+            for (long telegramUserId : userIds) {
+                if (!entries.containsKey(telegramUserId)) {
+                    PollEntry entry = new PollEntry(telegramUserId, now, 0, true);
+                    entries.put(telegramUserId, entry);
+                    queue.add(entry);
+                }
+            }
+        }
+    }
+
+    private synchronized List<PollEntry> takeDue(long now) {
+        List<PollEntry> due = new ArrayList<>();
+        while (!queue.isEmpty() && queue.peek().getDueAt() <= now) {
+            PollEntry entry = queue.poll();
+            entry.setQueued(false);
+            due.add(entry);
+        }
+        return due;
+    }
+
+    @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
+    private synchronized void reschedule(PollEntry entry, Optional<SpotifyPlayingData> result, long polledAt) {
+        if (entries.get(entry.getTelegramUserId()) != entry || entry.isQueued()) {
+            // removed by a sync, or already rescheduled by pollSoon while we were polling
+            return;
+        }
+
+        long delay;
+        if (result != null && result.isPresent() && result.get().isPlaying()) {
+            SpotifyPlayingData playingData = result.get();
+            entry.setIdlePolls(0);
+            if (playingData.getDurationMs() > 0) {
+                long remaining = Math.max(0L, playingData.getDurationMs() - playingData.getProgressMs());
+                delay = remaining + trackEndGraceMillis;
+            } else {
+                delay = maxPlayingIntervalMillis;
+            }
+            delay = Math.max(minIntervalMillis, Math.min(maxPlayingIntervalMillis, delay));
+        } else {
+            // not playing, nothing playing, or the refresh failed: back off
+            int idlePolls = entry.getIdlePolls();
+            entry.setIdlePolls(idlePolls + 1);
+            delay = Math.min(idleMaxMillis, idleBaseMillis << Math.min(idlePolls, 20));
+        }
+
+        entry.setDueAt(polledAt + delay);
+        entry.setQueued(true);
+        queue.add(entry);
+    }
+
+    @Getter
+    @Setter
+    @AllArgsConstructor
+    private static class PollEntry {
+
+        private final long telegramUserId;
+        private long dueAt;
+        private int idlePolls;
+        private boolean queued;
+
+    }
+
+}
@@ -0,0 +1,255 @@
+package xyz.nickr.telegram.nowlistening.scheduler;
+
+import com.google.gson.JsonObject;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import lombok.Getter;
+import xyz.nickr.telegram.nowlistening.db.DatabaseController;
+import xyz.nickr.telegram.nowlistening.metrics.Metrics;
+import xyz.nickr.telegram.nowlistening.util.ConfigUtil;
+
+/**
+ * Splits users between the nodes sharing a database, so each user is
+ * polled, refreshed and has their messages edited by exactly one node.
+ *
+ * Users are hashed into a fixed number of shards, and each node holds a
+ * lease on its shards that it renews on every heartbeat. The number of
+ * live nodes is taken from their heartbeats, and each node claims free
+ * shards up to its fair share and gives back any above it, so shards move
+ * when nodes join or leave. A node stops acting on a shard, and drops any
+ * edits it had queued for it, long enough before releasing it for edits
+ * already on their way to Telegram to land. It also stops acting on all of
+ * its shards shortly before their leases would expire, so two nodes never
+ * act on a shard at once.
+ *
+ * When sharding is disabled this node owns every user.
+ *
+ * @author Nick Robson
+ */
+public class ShardCoordinator implements Runnable {
+
+    private static final long PRUNE_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final DatabaseController databaseController;
+    @Getter
+    private final boolean enabled;
+    @Getter
+    private final String nodeId;
+    private final int shardCount;
+    private final long leaseSeconds;
+    @Getter
+    private final long heartbeatSeconds;
+    private final long releaseDelayMillis;
+    private final List<HeartbeatListener> heartbeatListeners = new CopyOnWriteArrayList<>();
+
+    // only touched by heartbeats
+    private Set<Integer> held = new TreeSet<>();
+    // shards we've stopped acting on, and when they can be released
+    private final Map<Integer, Long> releasing = new TreeMap<>();
+    private long lastPrunedMillis;
+
+    private volatile Set<Integer> owned = Collections.emptySet();
+    private volatile long ownedUntilMillis;
+    private volatile boolean stopped;
+
+    public ShardCoordinator(JsonObject config, DatabaseController databaseController) {
+        JsonObject sharding = ConfigUtil.getObject(config, "sharding");
+
+        this.databaseController = databaseController;
+        this.enabled = ConfigUtil.getBoolean(sharding, "enabled", false);
+        String configuredNodeId = ConfigUtil.getString(sharding, "node_id", "");
+        this.nodeId = configuredNodeId.isEmpty() ? defaultNodeId() : configuredNodeId;
+        this.shardCount = ConfigUtil.getInt(sharding, "shards", 64);
+        this.leaseSeconds = ConfigUtil.getLong(sharding, "lease_seconds", 45L);
+        this.heartbeatSeconds = ConfigUtil.getLong(sharding, "heartbeat_seconds", 15L);
+
+        // long enough for an edit that passed its ownership check just before we stopped acting to reach Telegram
+        JsonObject tg = ConfigUtil.getObject(config, "telegram");
+        long editDelayMillis = TimeUnit.SECONDS.toMillis(ConfigUtil.getLong(tg, "edit_min_interval_seconds", 15L))
+                + ConfigUtil.getLong(tg, "edit_coalesce_millis", 2000L);
+        long releaseDelaySeconds = ConfigUtil.getLong(sharding, "release_delay_seconds", 0L);
+        this.releaseDelayMillis = releaseDelaySeconds > 0
+                ? TimeUnit.SECONDS.toMillis(releaseDelaySeconds)
+                : editDelayMillis + TimeUnit.SECONDS.toMillis(10L);
+
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("sharding.shards must be at least 1");
+        }
+        if (heartbeatSeconds < 1 || heartbeatSeconds * 2 > leaseSeconds) {
+            throw new IllegalArgumentException("sharding.lease_seconds must be at least twice sharding.heartbeat_seconds");
+        }
+
+        if (enabled) {
+            Metrics.gauge("nowlistening_shards_owned", "Shards this node currently polls and edits messages for", () -> owned.size());
+        }
+    }
+
+    private static String defaultNodeId() {
+        try {
+            return InetAddress.getLocalHost().getHostName() + "-" + ProcessHandle.current().pid();
+        } catch (UnknownHostException ex) {
+            return UUID.randomUUID().toString();
+        }
+    }
+
+    public interface HeartbeatListener {
+        /**
+         * Called after each successful heartbeat, once anything other nodes changed has been reloaded.
+         *
+         * @param changedUsers the users whose account or messages changed since the last heartbeat,
+         *                     or empty if too much changed to tell
+         * @param shardsGained whether this node has started owning users it didn't own before
+         */
+        void onHeartbeat(Optional<Set<Long>> changedUsers, boolean shardsGained);
+    }
+
+    /**
+     * Adds a listener that is called after each successful heartbeat.
+     */
+    public void addHeartbeatListener(HeartbeatListener listener) {
+        heartbeatListeners.add(Objects.requireNonNull(listener, "listener can't be null"));
+    }
+
+    /**
+     * @return whether this node should poll the given user and edit their messages
+     */
+    public boolean owns(long telegramUserId) {
+        if (!enabled) {
+            return true;
+        }
+        return System.currentTimeMillis() < ownedUntilMillis && owned.contains(shardOf(telegramUserId));
+    }
+
+    private int shardOf(long telegramUserId) {
+        // spread ids that are close together across all of the shards
+        long mixed = telegramUserId * 0x9E3779B97F4A7C15L;
+        return Math.floorMod(mixed ^ (mixed >>> 32), shardCount);
+    }
+
+    @Override
+    public synchronized void run() {
+        if (!enabled || stopped) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            heartbeat();
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+        JobMetrics.RUN_SECONDS.labels("shard_coordinator").observeSince(start);
+    }
+
+    private void heartbeat() throws SQLException {
+        long startMillis = System.currentTimeMillis();
+        long now = TimeUnit.MILLISECONDS.toSeconds(startMillis);
+
+        // nothing has acted on these for long enough that anything in flight for them has landed
+        List<Integer> released = new ArrayList<>();
+        releasing.forEach((shard, releaseAt) -> {
+            if (releaseAt <= startMillis) {
+                released.add(shard);
+            }
+        });
+        databaseController.releaseShards(nodeId, released);
+        held.removeAll(released);
+        releasing.keySet().removeAll(released);
+
+        int liveNodes = databaseController.heartbeatNode(nodeId, now, leaseSeconds);
+        int fairShare = (shardCount + liveNodes - 1) / Math.max(1, liveNodes);
+
+        // shards we're still holding are the cheapest to take back on
+        Iterator<Integer> releasingShards = releasing.keySet().iterator();
+        while (held.size() - releasing.size() < fairShare && releasingShards.hasNext()) {
+            releasingShards.next();
+            releasingShards.remove();
+        }
+
+        Set<Integer> wanted = new LinkedHashSet<>(held);
+        if (wanted.size() - releasing.size() < fairShare) {
+            Map<Integer, String> holders = databaseController.getShardHolders(now);
+            for (int shard = 0; shard < shardCount && wanted.size() - releasing.size() < fairShare; shard++) {
+                if (!holders.containsKey(shard)) {
+                    wanted.add(shard);
+                }
+            }
+        }
+
+        Set<Integer> nowHeld = new TreeSet<>(databaseController.claimShards(nodeId, wanted, now, leaseSeconds));
+        nowHeld.removeIf(shard -> shard >= shardCount);
+        releasing.keySet().retainAll(nowHeld);
+        List<Integer> keeping = new ArrayList<>(nowHeld);
+        keeping.removeAll(releasing.keySet());
+        for (int shard : keeping.subList(Math.min(fairShare, keeping.size()), keeping.size())) {
+            // keep renewing them until they're released, so nobody else picks them up in the meantime
+            releasing.put(shard, startMillis + releaseDelayMillis);
+        }
+        held = nowHeld;
+
+        Optional<Set<Long>> changedUsers = databaseController.reload();
+
+        Set<Integer> newOwned = new TreeSet<>(held);
+        newOwned.removeAll(releasing.keySet());
+        // shards we stopped acting on when our leases ran short count as gained again
+        boolean shardsGained = !owned.containsAll(newOwned) || (startMillis >= ownedUntilMillis && !newOwned.isEmpty());
+        // stop a second early to allow for the clocks of the nodes disagreeing slightly
+        ownedUntilMillis = startMillis + TimeUnit.SECONDS.toMillis(leaseSeconds - 1);
+        if (!newOwned.equals(owned)) {
+            System.out.format("[NowListening] Node %s now owns %d/%d shards, shared between %d nodes.\n",
+                    nodeId, newOwned.size(), shardCount, liveNodes);
+        }
+        owned = Collections.unmodifiableSet(newOwned);
+
+        heartbeatListeners.forEach(listener -> {
+            try {
+                listener.onHeartbeat(changedUsers, shardsGained);
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        });
+
+        if (startMillis - lastPrunedMillis >= PRUNE_INTERVAL_MILLIS) {
+            lastPrunedMillis = startMillis;
+            try {
+                databaseController.pruneChanges();
+            } catch (SQLException ex) {
+                // not worth failing the heartbeat over, it's tried again in a minute
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Gives up all of this node's shards so the other nodes can take them over straight away.
+     */
+    public synchronized void shutdown() {
+        if (!enabled) {
+            return;
+        }
+        stopped = true;
+        owned = Collections.emptySet();
+        ownedUntilMillis = 0;
+        try {
+            databaseController.leaveShards(nodeId);
+            System.out.format("[NowListening] Node %s left, releasing its shards.\n", nodeId);
+        } catch (SQLException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+}
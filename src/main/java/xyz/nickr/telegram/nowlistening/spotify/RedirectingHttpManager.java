@@ -0,0 +1,84 @@
+package xyz.nickr.telegram.nowlistening.spotify;
+
+import com.google.gson.JsonObject;
+import com.wrapper.spotify.IHttpManager;
+import com.wrapper.spotify.SpotifyApi;
+import com.wrapper.spotify.exceptions.SpotifyWebApiException;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import xyz.nickr.telegram.nowlistening.util.ConfigUtil;
+
+/**
+ * Sends requests meant for Spotify's hosts to other servers instead,
+ * e.g. local stand-ins when load testing.
+ *
+ * The library always sends token requests to the accounts host, whatever
+ * the api is configured with, so the requests are redirected here instead.
+ *
+ * @author Nick Robson
+ */
+public class RedirectingHttpManager implements IHttpManager {
+
+    private final IHttpManager delegate;
+    private final Map<String, URI> redirects;
+
+    private RedirectingHttpManager(IHttpManager delegate, Map<String, URI> redirects) {
+        this.delegate = delegate;
+        this.redirects = redirects;
+    }
+
+    /**
+     * @return the delegate, redirecting to {@code spotify.api_url} and {@code spotify.accounts_url} if either is set
+     */
+    public static IHttpManager wrap(IHttpManager delegate, JsonObject spotify) {
+        Map<String, URI> redirects = new HashMap<>();
+        String apiUrl = ConfigUtil.getString(spotify, "api_url", null);
+        if (apiUrl != null) {
+            redirects.put(SpotifyApi.DEFAULT_HOST, URI.create(apiUrl));
+        }
+        String accountsUrl = ConfigUtil.getString(spotify, "accounts_url", null);
+        if (accountsUrl != null) {
+            redirects.put(SpotifyApi.DEFAULT_AUTHENTICATION_HOST, URI.create(accountsUrl));
+        }
+        return redirects.isEmpty() ? delegate : new RedirectingHttpManager(delegate, redirects);
+    }
+
+    private URI redirect(URI uri) {
+        URI target = redirects.get(uri.getHost());
+        if (target == null) {
+            return uri;
+        }
+        try {
+            return new URI(target.getScheme(), uri.getUserInfo(), target.getHost(), target.getPort(),
+                    uri.getPath(), uri.getQuery(), uri.getFragment());
+        } catch (URISyntaxException ex) {
+            throw new IllegalArgumentException("Can't redirect " + uri + " to " + target, ex);
+        }
+    }
+
+    @Override
+    public String get(URI uri, Header[] headers) throws IOException, SpotifyWebApiException {
+        return delegate.get(redirect(uri), headers);
+    }
+
+    @Override
+    public String post(URI uri, Header[] headers, HttpEntity body) throws IOException, SpotifyWebApiException {
+        return delegate.post(redirect(uri), headers, body);
+    }
+
+    @Override
+    public String put(URI uri, Header[] headers, HttpEntity body) throws IOException, SpotifyWebApiException {
+        return delegate.put(redirect(uri), headers, body);
+    }
+
+    @Override
+    public String delete(URI uri, Header[] headers, HttpEntity body) throws IOException, SpotifyWebApiException {
+        return delegate.delete(redirect(uri), headers, body);
+    }
+
+}
@@ -1,32 +1,50 @@
 package xyz.nickr.telegram.nowlistening.spotify;
 
 import com.google.gson.JsonObject;
+import com.wrapper.spotify.IHttpManager;
 import com.wrapper.spotify.SpotifyApi;
+import com.wrapper.spotify.SpotifyHttpManager;
 import com.wrapper.spotify.exceptions.SpotifyWebApiException;
 import com.wrapper.spotify.model_objects.credentials.AuthorizationCodeCredentials;
 import com.wrapper.spotify.model_objects.miscellaneous.CurrentlyPlaying;
 import com.wrapper.spotify.model_objects.specification.ArtistSimplified;
 import com.wrapper.spotify.model_objects.specification.Track;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.URI;
 import java.sql.SQLException;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
+import lombok.AllArgsConstructor;
 import xyz.nickr.telegram.nowlistening.db.DatabaseController;
 import xyz.nickr.telegram.nowlistening.db.models.SpotifyPlayingData;
 import xyz.nickr.telegram.nowlistening.db.models.SpotifyUser;
+import xyz.nickr.telegram.nowlistening.db.models.UserSnapshot;
+import xyz.nickr.telegram.nowlistening.metrics.Counter;
+import xyz.nickr.telegram.nowlistening.metrics.Metrics;
+import xyz.nickr.telegram.nowlistening.spotify.SpotifyGovernor.Priority;
 
 public class SpotifyController {
 
+    private static final Metrics.Family<Counter> PLAYING_DATA_CHECKS = Metrics.counter(
+            "nowlistening_playing_data_checks_total", "Playing data fetched from Spotify, by whether it had changed", "changed");
+
     private final SpotifyApi api;
+    private final IHttpManager httpManager;
+    private final SpotifyGovernor governor;
     private final DatabaseController databaseController;
     private final List<PlayingDataConsumer> listeners = new ArrayList<>();
+    private final Map<Long, Flight> inFlight = new ConcurrentHashMap<>();
 
     public SpotifyController(JsonObject config, DatabaseController databaseController) {
         JsonObject spotify = config.getAsJsonObject("spotify");
@@ -36,7 +54,10 @@ public class SpotifyController {
         URI redirectUri = URI.create(spotify.getAsJsonPrimitive("redirect_uri").getAsString());
 
         this.databaseController = databaseController;
+        this.governor = new SpotifyGovernor(config);
+        this.httpManager = RedirectingHttpManager.wrap(new SpotifyHttpManager.Builder().build(), spotify);
         this.api = SpotifyApi.builder()
+                .setHttpManager(httpManager)
                 .setClientId(clientId)
                 .setClientSecret(clientSecret)
                 .setRedirectUri(redirectUri)
@@ -47,6 +68,10 @@ public class SpotifyController {
         return api;
     }
 
+    public SpotifyGovernor getGovernor() {
+        return governor;
+    }
+
     public void addListener(PlayingDataConsumer consumer) {
         listeners.add(Objects.requireNonNull(consumer, "listener can't be null"));
     }
@@ -82,12 +107,100 @@ public class SpotifyController {
         }
     }
 
-    public Optional<SpotifyPlayingData> updatePlayingData(SpotifyUser user) throws SQLException, SpotifyWebApiException, IOException {
-        Optional<SpotifyPlayingData> oldPlayingData = databaseController.getPlayingData(user.getTelegramUserId());
+    /**
+     * Stores credentials from a token refresh, unless the user has been deleted in the meantime.
+     *
+     * @return whether the user was still there to update
+     */
+    public boolean refreshSpotifyUser(long telegramUserId, AuthorizationCodeCredentials credentials) throws SQLException {
+        Optional<SpotifyUser> spotifyUser = databaseController.getSpotifyUser(telegramUserId);
+        if (spotifyUser.isEmpty()) {
+            return false;
+        }
+        SpotifyUser refreshed = spotifyUser.get()
+                .withAccessToken(credentials.getAccessToken())
+                .withRefreshToken(credentials.getRefreshToken() != null ? credentials.getRefreshToken() : spotifyUser.get().getRefreshToken())
+                .withTokenType(credentials.getTokenType())
+                .withScope(credentials.getScope())
+                .withExpiryDate(Instant.now().getEpochSecond() + credentials.getExpiresIn());
+        return databaseController.updateSpotifyTokens(refreshed);
+    }
 
-        CurrentlyPlaying currentlyPlaying = SpotifyApi.builder()
-                .setAccessToken(user.getAccessToken()).build()
-                .getUsersCurrentlyPlayingTrack().build().execute();
+    public Optional<SpotifyPlayingData> updatePlayingData(SpotifyUser user, Priority priority) throws SQLException, SpotifyWebApiException, IOException {
+        SpotifyPlayingData playingData = databaseController.getPlayingData(user.getTelegramUserId()).orElse(null);
+        return updatePlayingData(new UserSnapshot(user, playingData, null), priority);
+    }
+
+    /**
+     * Refreshes a user's playing data, using the snapshot's playing data as the previous value
+     * and passing its enabled messages on to the listeners if the playing data changed.
+     *
+     * If the user's playing data is already being refreshed, this waits for and returns
+     * that result instead of asking Spotify again. Interactive callers don't wait on
+     * background refreshes, which may be queued behind every other background call;
+     * the first takes the background refresh's place, and later ones wait on it instead.
+     */
+    public Optional<SpotifyPlayingData> updatePlayingData(UserSnapshot snapshot, Priority priority) throws SQLException, SpotifyWebApiException, IOException {
+        long telegramUserId = snapshot.getTelegramUserId();
+        CompletableFuture<Optional<SpotifyPlayingData>> future = new CompletableFuture<>();
+        Flight flight = new Flight(future, priority);
+        while (true) {
+            Flight existing = inFlight.putIfAbsent(telegramUserId, flight);
+            if (existing == null) {
+                break;
+            }
+            if (priority == Priority.INTERACTIVE && existing.priority == Priority.BACKGROUND) {
+                // the background refresh carries on for whoever is already waiting on it
+                if (inFlight.replace(telegramUserId, existing, flight)) {
+                    break;
+                }
+                continue;
+            }
+            return await(existing.future);
+        }
+
+        try {
+            Optional<SpotifyPlayingData> playingData = fetchPlayingData(snapshot, priority);
+            future.complete(playingData);
+            return playingData;
+        } catch (Throwable ex) {
+            // anyone waiting on this refresh must be woken whatever went wrong
+            future.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            inFlight.remove(telegramUserId, flight);
+        }
+    }
+
+    private Optional<SpotifyPlayingData> await(CompletableFuture<Optional<SpotifyPlayingData>> future) throws SQLException, SpotifyWebApiException, IOException {
+        try {
+            // interruptible, so a refresh cancelled at the cycle deadline doesn't hold its thread
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for another refresh of the same user");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof SQLException sqlException) {
+                throw sqlException;
+            } else if (cause instanceof SpotifyWebApiException spotifyException) {
+                throw spotifyException;
+            } else if (cause instanceof IOException ioException) {
+                throw ioException;
+            } else if (cause instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            } else if (cause instanceof Error error) {
+                throw error;
+            }
+            throw new IOException("Refresh of the same user failed", cause);
+        }
+    }
+
+    private Optional<SpotifyPlayingData> fetchPlayingData(UserSnapshot snapshot, Priority priority) throws SQLException, SpotifyWebApiException, IOException {
+        SpotifyUser user = snapshot.getUser();
+        Optional<SpotifyPlayingData> oldPlayingData = Optional.ofNullable(snapshot.getPlayingData());
+
+        CurrentlyPlaying currentlyPlaying = governor.execute(priority, () -> getCurrentlyPlaying(user));
 
         if (currentlyPlaying != null && currentlyPlaying.getItem() != null) {
             Track track = currentlyPlaying.getItem();
@@ -102,28 +215,45 @@ public class SpotifyController {
                     .lastTrackUrl(track.getExternalUrls().get("spotify"))
                     .lastChecked(Instant.now().getEpochSecond())
                     .playing(currentlyPlaying.getIs_playing())
+                    .progressMs(currentlyPlaying.getProgress_ms() != null ? currentlyPlaying.getProgress_ms() : 0L)
+                    .durationMs(track.getDurationMs() != null ? track.getDurationMs() : 0L)
                     .build();
 
             databaseController.updatePlayingData(playingData);
-            playingDataChanged(oldPlayingData, playingData);
+            playingDataChanged(snapshot, playingData);
             return Optional.of(playingData);
         } else {
             if (oldPlayingData.isPresent()) {
-                SpotifyPlayingData data = oldPlayingData.get().withPlaying(false);
+                SpotifyPlayingData data = oldPlayingData.get()
+                        .withPlaying(false)
+                        .withLastChecked(Instant.now().getEpochSecond());
                 databaseController.updatePlayingData(data);
-                playingDataChanged(oldPlayingData, data);
+                playingDataChanged(snapshot, data);
                 return Optional.of(data);
             }
             return Optional.empty();
         }
     }
 
-    @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
-    private void playingDataChanged(Optional<SpotifyPlayingData> oldPlayingData, SpotifyPlayingData newPlayingData) {
-        if (!oldPlayingData.isPresent() || !oldPlayingData.get().equals(newPlayingData)) {
+    /**
+     * Asks Spotify what the user is currently playing.
+     * Overridden by the benchmarks and load tests to avoid talking to Spotify.
+     */
+    protected CurrentlyPlaying getCurrentlyPlaying(SpotifyUser user) throws SpotifyWebApiException, IOException {
+        return SpotifyApi.builder()
+                .setHttpManager(httpManager)
+                .setAccessToken(user.getAccessToken()).build()
+                .getUsersCurrentlyPlayingTrack().build().execute();
+    }
+
+    private void playingDataChanged(UserSnapshot snapshot, SpotifyPlayingData newPlayingData) {
+        boolean changed = !newPlayingData.equals(snapshot.getPlayingData());
+        PLAYING_DATA_CHECKS.labels(Boolean.toString(changed)).inc();
+        if (changed) {
+            UserSnapshot newSnapshot = snapshot.withPlayingData(newPlayingData);
             listeners.forEach(listener -> {
                 try {
-                    listener.accept(newPlayingData);
+                    listener.accept(newSnapshot);
                 } catch (Exception ex) {
                     ex.printStackTrace();
                 }
@@ -131,7 +261,18 @@ public class SpotifyController {
         }
     }
 
+    @AllArgsConstructor
+    private static class Flight {
+
+        private final CompletableFuture<Optional<SpotifyPlayingData>> future;
+        private final Priority priority;
+
+    }
+
     public interface PlayingDataConsumer {
-        void accept(SpotifyPlayingData playingData) throws Exception;
+        /**
+         * @param snapshot the user's snapshot, holding their new playing data
+         */
+        void accept(UserSnapshot snapshot) throws Exception;
     }
 }
@@ -0,0 +1,234 @@
+package xyz.nickr.telegram.nowlistening.spotify;
+
+import com.google.gson.JsonObject;
+import com.wrapper.spotify.exceptions.SpotifyWebApiException;
+import com.wrapper.spotify.exceptions.detailed.TooManyRequestsException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import xyz.nickr.telegram.nowlistening.metrics.Counter;
+import xyz.nickr.telegram.nowlistening.metrics.Histogram;
+import xyz.nickr.telegram.nowlistening.metrics.Metrics;
+import xyz.nickr.telegram.nowlistening.util.ConfigUtil;
+import xyz.nickr.telegram.nowlistening.util.TokenBucket;
+
+/**
+ * Every request we make to Spotify goes through here.
+ *
+ * Requests are started under a global rate limit and an adaptive concurrency
+ * limit, which grows by one per limit's worth of successes and halves whenever
+ * Spotify responds with 429. Other failures leave the limit where it is.
+ * A 429 also pauses all requests for as long as its Retry-After asks.
+ * Waiting interactive requests are let through ahead of background ones,
+ * but background requests still get one turn in every
+ * {@code interactive_weight + 1} so polling is never starved.
+ *
+ * @author Nick Robson
+ */
+public class SpotifyGovernor {
+
+    private static final long IDLE_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private static final Metrics.Family<Histogram> REQUEST_SECONDS = Metrics.histogram(
+            "nowlistening_spotify_request_seconds", "Latency of Spotify API calls, excluding time spent waiting to be admitted", "priority");
+    private static final Metrics.Family<Histogram> WAIT_SECONDS = Metrics.histogram(
+            "nowlistening_spotify_wait_seconds", "Time Spotify API calls spent waiting for the governor to admit them", "priority");
+    private static final Metrics.Family<Counter> ERRORS = Metrics.counter(
+            "nowlistening_spotify_errors_total", "Failed Spotify API calls by exception type", "type");
+
+    public enum Priority {
+        /** a user is waiting on the result, e.g. an inline query */
+        INTERACTIVE,
+        /** polling and token refreshes */
+        BACKGROUND
+    }
+
+    public interface Call<T> {
+
+        T execute() throws SpotifyWebApiException, IOException;
+
+    }
+
+    private final TokenBucket rateLimit;
+    private final double minConcurrency;
+    private final double maxConcurrency;
+    private final int interactiveWeight;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Deque<Waiter> interactive = new ArrayDeque<>();
+    private final Deque<Waiter> background = new ArrayDeque<>();
+    private double concurrencyLimit;
+    private int inFlight;
+    private int interactiveStreak;
+    private long pausedUntil;
+
+    public SpotifyGovernor(JsonObject config) {
+        JsonObject spotify = ConfigUtil.getObject(config, "spotify");
+
+        double requestsPerSecond = ConfigUtil.getDouble(spotify, "requests_per_second", 20.0);
+
+        this.rateLimit = new TokenBucket(Math.max(1.0, ConfigUtil.getDouble(spotify, "request_burst", requestsPerSecond)), requestsPerSecond);
+        this.minConcurrency = Math.max(1, ConfigUtil.getInt(spotify, "min_concurrency", 2));
+        this.maxConcurrency = Math.max(minConcurrency, ConfigUtil.getInt(spotify, "max_concurrency", 32));
+        this.interactiveWeight = Math.max(1, ConfigUtil.getInt(spotify, "interactive_weight", 4));
+        this.concurrencyLimit = Math.min(maxConcurrency, Math.max(minConcurrency, ConfigUtil.getInt(spotify, "initial_concurrency", 8)));
+
+        Metrics.gauge("nowlistening_spotify_in_flight", "Spotify API calls currently running", () -> getInFlight());
+        Metrics.gauge("nowlistening_spotify_concurrency_limit", "The governor's current concurrency limit", () -> getConcurrencyLimit());
+    }
+
+    /**
+     * Waits for a turn to talk to Spotify, then makes the call.
+     */
+    public <T> T execute(Priority priority, Call<T> call) throws SpotifyWebApiException, IOException {
+        String priorityLabel = priority.name().toLowerCase(Locale.ENGLISH);
+        long waitStart = System.nanoTime();
+        acquire(priority);
+        WAIT_SECONDS.labels(priorityLabel).observeSince(waitStart);
+
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            T result = call.execute();
+            succeeded = true;
+            return result;
+        } catch (TooManyRequestsException ex) {
+            onRateLimited(ex.getRetryAfter());
+            ERRORS.labels(ex.getClass().getSimpleName()).inc();
+            throw ex;
+        } catch (SpotifyWebApiException | IOException | RuntimeException ex) {
+            ERRORS.labels(ex.getClass().getSimpleName()).inc();
+            throw ex;
+        } finally {
+            REQUEST_SECONDS.labels(priorityLabel).observeSince(start);
+            release(succeeded);
+        }
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getConcurrencyLimit() {
+        lock.lock();
+        try {
+            return (int) concurrencyLimit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void acquire(Priority priority) throws InterruptedIOException {
+        Waiter waiter = new Waiter();
+        lock.lock();
+        try {
+            (priority == Priority.INTERACTIVE ? interactive : background).addLast(waiter);
+            long waitNanos = grant();
+            while (!waiter.granted) {
+                changed.awaitNanos(waitNanos);
+                waitNanos = grant();
+            }
+        } catch (InterruptedException ex) {
+            if (!interactive.remove(waiter) && !background.remove(waiter) && waiter.granted) {
+                // granted just as we were interrupted, so give the slot back
+                inFlight--;
+                changed.signalAll();
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to call Spotify");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Lets through as many waiters as the limits allow. Must hold the lock.
+     *
+     * @return how long waiters should sleep before trying again
+     */
+    private long grant() {
+        boolean grantedAny = false;
+        long waitNanos = IDLE_WAIT_NANOS;
+        while (!interactive.isEmpty() || !background.isEmpty()) {
+            long pause = pausedUntil - System.currentTimeMillis();
+            if (pause > 0) {
+                waitNanos = TimeUnit.MILLISECONDS.toNanos(pause);
+                break;
+            }
+            if (inFlight >= (int) concurrencyLimit) {
+                break;
+            }
+            long tokenWait = rateLimit.tryAcquire();
+            if (tokenWait > 0) {
+                waitNanos = tokenWait;
+                break;
+            }
+
+            Waiter waiter;
+            if (!interactive.isEmpty() && (background.isEmpty() || interactiveStreak < interactiveWeight)) {
+                waiter = interactive.pollFirst();
+                interactiveStreak++;
+            } else {
+                waiter = background.pollFirst();
+                interactiveStreak = 0;
+            }
+            waiter.granted = true;
+            inFlight++;
+            grantedAny = true;
+        }
+        if (grantedAny) {
+            changed.signalAll();
+        }
+        return waitNanos;
+    }
+
+    private void release(boolean succeeded) {
+        lock.lock();
+        try {
+            inFlight--;
+            if (succeeded) {
+                concurrencyLimit = Math.min(maxConcurrency, concurrencyLimit + 1 / concurrencyLimit);
+            }
+            grant();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onRateLimited(int retryAfterSeconds) {
+        lock.lock();
+        try {
+            long retryAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(Math.max(1, retryAfterSeconds));
+            if (retryAt > pausedUntil) {
+                // only the first 429 of a burst halves the limit and logs
+                boolean alreadyPaused = pausedUntil > System.currentTimeMillis();
+                pausedUntil = retryAt;
+                if (!alreadyPaused) {
+                    concurrencyLimit = Math.max(minConcurrency, concurrencyLimit / 2);
+                    System.err.format("[NowListening] Rate limited by Spotify, pausing for %ds with a concurrency limit of %d.\n",
+                            Math.max(1, retryAfterSeconds), (int) concurrencyLimit);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static class Waiter {
+
+        private boolean granted;
+
+    }
+
+}
@@ -29,6 +29,7 @@ public class CallbackQueryHandler {
                     .ifPresent(message -> {
                         try {
                             databaseController.enableMessage(message);
+                            telegramController.getActiveAudience().onMessageEnabled(telegramUserId);
                             telegramController.updateMessage(message);
                         } catch (SQLException ex) {
                             ex.printStackTrace();
@@ -24,6 +24,7 @@ public class ChosenInlineResultHandler {
                 long telegramUserId = chosenInlineResult.from().id();
                 String messageId = chosenInlineResult.inlineMessageId();
                 databaseController.addNowListeningMessage(telegramUserId, messageId, permanent);
+                telegramController.getActiveAudience().onMessageEnabled(telegramUserId);
                 telegramController.updateEnabledNowListeningMessages(telegramUserId);
             }
         } catch (Exception ex) {
@@ -0,0 +1,207 @@
+package xyz.nickr.telegram.nowlistening.telegram;
+
+import com.google.gson.JsonObject;
+import com.pengrad.telegrambot.request.EditMessageText;
+import com.pengrad.telegrambot.response.BaseResponse;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import lombok.AllArgsConstructor;
+import xyz.nickr.telegram.nowlistening.db.models.NowListeningMessage;
+import xyz.nickr.telegram.nowlistening.metrics.Counter;
+import xyz.nickr.telegram.nowlistening.metrics.Metrics;
+import xyz.nickr.telegram.nowlistening.util.ConfigUtil;
+import xyz.nickr.telegram.nowlistening.util.NamedThreadFactory;
+import xyz.nickr.telegram.nowlistening.util.TokenBucket;
+
+/**
+ * Sends message edits to Telegram without blocking the caller.
+ *
+ * Pending edits are keyed by inline message id and the latest one wins,
+ * so each message is edited at most once per minimum interval.
+ * An edit saying a message stopped updating is only replaced once the
+ * message is re-enabled. Live edits are dropped if their message has
+ * been disabled by the time they're sent, as are edits for users this
+ * node has stopped owning. All edits share a rate limit and pause when
+ * Telegram asks us to retry later, and edits that don't reach Telegram
+ * are retried after the minimum interval.
+ *
+ * @author Nick Robson
+ */
+public class EditQueue {
+
+    private static final Metrics.Family<Counter> EDITS = Metrics.counter(
+            "nowlistening_edits_total", "Message edits by outcome; coalesced, stale and not_modified edits were suppressed", "outcome");
+
+    private final TelegramController telegramController;
+    private final int workers;
+    private final long minIntervalMillis;
+    private final long coalesceMillis;
+    private final TokenBucket rateLimit;
+
+    private final Map<String, PendingEdit> pending = new ConcurrentHashMap<>();
+    private final Map<String, Long> lastSent = new ConcurrentHashMap<>();
+    private final DelayQueue<QueuedEdit> queue = new DelayQueue<>();
+    private volatile long pausedUntil;
+    private volatile long lastPruned;
+
+    public EditQueue(JsonObject config, TelegramController telegramController) {
+        JsonObject tg = ConfigUtil.getObject(config, "telegram");
+
+        double editsPerSecond = ConfigUtil.getDouble(tg, "edits_per_second", 25.0);
+
+        this.telegramController = telegramController;
+        this.workers = ConfigUtil.getInt(tg, "edit_workers", 4);
+        this.minIntervalMillis = TimeUnit.SECONDS.toMillis(ConfigUtil.getLong(tg, "edit_min_interval_seconds", 15L));
+        this.coalesceMillis = ConfigUtil.getLong(tg, "edit_coalesce_millis", 2000L);
+        this.rateLimit = new TokenBucket(Math.max(1.0, editsPerSecond), editsPerSecond);
+
+        Metrics.gauge("nowlistening_edits_pending", "Edits waiting to be sent", () -> pending.size());
+    }
+
+    public void start() {
+        NamedThreadFactory threadFactory = new NamedThreadFactory("EditQueue");
+        for (int i = 0; i < workers; i++) {
+            threadFactory.newThread(this::work).start();
+        }
+    }
+
+    /**
+     * Queues an edit, replacing any edit to the same message that hasn't been sent yet.
+     *
+     * @param enabled whether the edit shows the message as still updating
+     */
+    public synchronized void enqueue(NowListeningMessage message, EditMessageText request, boolean enabled) {
+        String inlineMessageId = message.getInlineMessageId();
+        boolean owned = telegramController.getShardCoordinator().owns(message.getTelegramUserId());
+        PendingEdit edit = new PendingEdit(message, request, enabled, owned);
+        PendingEdit previous = pending.get(inlineMessageId);
+        if (previous != null && !previous.enabled && enabled && !telegramController.isMessageEnabled(message)) {
+            // a live edit rendered before the message was disabled mustn't hide that it stopped updating
+            EDITS.labels("stale").inc();
+            return;
+        }
+        if (pending.put(inlineMessageId, edit) != null) {
+            EDITS.labels("coalesced").inc();
+        } else {
+            long earliest = lastSent.getOrDefault(inlineMessageId, 0L) + minIntervalMillis;
+            queue.add(new QueuedEdit(inlineMessageId, Math.max(System.currentTimeMillis() + coalesceMillis, earliest)));
+        }
+    }
+
+    private void work() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                QueuedEdit queued = queue.take();
+                PendingEdit edit;
+                synchronized (this) {
+                    edit = pending.remove(queued.inlineMessageId);
+                    if (edit == null) {
+                        continue;
+                    }
+                    // counts as sent already, so an edit queued while this one waits still keeps its distance
+                    lastSent.put(queued.inlineMessageId, Math.max(System.currentTimeMillis(), pausedUntil));
+                }
+
+                long pause = pausedUntil - System.currentTimeMillis();
+                if (pause > 0) {
+                    Thread.sleep(pause);
+                }
+                rateLimit.acquire();
+
+                if (edit.owned && !telegramController.getShardCoordinator().owns(edit.message.getTelegramUserId())) {
+                    // the user's new owner edits their messages now
+                    EDITS.labels("not_owned").inc();
+                    continue;
+                }
+                if (edit.enabled && !telegramController.isMessageEnabled(edit.message)) {
+                    EDITS.labels("stale").inc();
+                    continue;
+                }
+
+                lastSent.put(queued.inlineMessageId, System.currentTimeMillis());
+                telegramController.executeAsync(edit.request, response -> {
+                    if (response.isOk()) {
+                        EDITS.labels("sent").inc();
+                        return;
+                    }
+                    TelegramError error = TelegramError.classify(response);
+                    EDITS.labels(error.name().toLowerCase(Locale.ENGLISH)).inc();
+                    if (error == TelegramError.RATE_LIMITED) {
+                        retryLater(queued.inlineMessageId, edit, response);
+                    } else {
+                        telegramController.onEditError(edit.message, response);
+                    }
+                }, ex -> {
+                    EDITS.labels("io").inc();
+                    System.err.format("[NowListening] Edit of %s failed, retrying: %s\n", queued.inlineMessageId, ex);
+                    retry(queued.inlineMessageId, edit, System.currentTimeMillis() + minIntervalMillis);
+                });
+
+                if (System.currentTimeMillis() - lastPruned > minIntervalMillis) {
+                    prune();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    private void retryLater(String inlineMessageId, PendingEdit edit, BaseResponse response) {
+        Integer retryAfter = response.parameters() != null ? response.parameters().retryAfter() : null;
+        long retryAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(retryAfter != null ? retryAfter : 1);
+        pausedUntil = Math.max(pausedUntil, retryAt);
+        retry(inlineMessageId, edit, retryAt);
+    }
+
+    private void retry(String inlineMessageId, PendingEdit edit, long retryAt) {
+        // a newer edit may have been queued while this one was being sent
+        if (pending.putIfAbsent(inlineMessageId, edit) == null) {
+            queue.add(new QueuedEdit(inlineMessageId, retryAt));
+        }
+    }
+
+    /**
+     * Forgets when messages were last edited once that no longer delays their next edit.
+     */
+    private void prune() {
+        lastPruned = System.currentTimeMillis();
+        long cutoff = lastPruned - minIntervalMillis;
+        lastSent.values().removeIf(sentAt -> sentAt < cutoff);
+    }
+
+    @AllArgsConstructor
+    private static class PendingEdit {
+
+        private final NowListeningMessage message;
+        private final EditMessageText request;
+        private final boolean enabled;
+        // edits answering an update are sent whoever owns the user
+        private final boolean owned;
+
+    }
+
+    @AllArgsConstructor
+    private static class QueuedEdit implements Delayed {
+
+        private final String inlineMessageId;
+        private final long dueAt;
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(getDelay(TimeUnit.MILLISECONDS), other.getDelay(TimeUnit.MILLISECONDS));
+        }
+
+    }
+
+}
@@ -1,71 +1,109 @@
 package xyz.nickr.telegram.nowlistening.telegram;
 
-import com.pengrad.telegrambot.TelegramBot;
+import com.google.gson.JsonObject;
 import com.pengrad.telegrambot.model.InlineQuery;
 import com.pengrad.telegrambot.model.request.InlineQueryResultArticle;
 import com.pengrad.telegrambot.model.request.InputTextMessageContent;
 import com.pengrad.telegrambot.model.request.ParseMode;
 import com.pengrad.telegrambot.request.AnswerInlineQuery;
-import lombok.AllArgsConstructor;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import xyz.nickr.telegram.nowlistening.db.DatabaseController;
 import xyz.nickr.telegram.nowlistening.db.models.SpotifyPlayingData;
 import xyz.nickr.telegram.nowlistening.db.models.SpotifyUser;
 import xyz.nickr.telegram.nowlistening.spotify.SpotifyController;
+import xyz.nickr.telegram.nowlistening.spotify.SpotifyGovernor.Priority;
+import xyz.nickr.telegram.nowlistening.util.ConfigUtil;
+import xyz.nickr.telegram.nowlistening.util.NamedThreadFactory;
 
 import java.util.Optional;
 
 /**
+ * Answers inline queries, from the cached playing data when it was checked
+ * recently enough and otherwise by asking Spotify first.
+ *
+ * When answering from the cache the playing data is refreshed in the background,
+ * so the next query (and any enabled messages) see the latest track. Each user
+ * has at most one background refresh queued or running, and refreshes that
+ * don't fit in the queue are skipped, so a burst of keystrokes costs one call.
+ *
  * @author Nick Robson
  */
-@AllArgsConstructor
 public class InlineQueryHandler {
 
+    // after this long an answer's unlikely to still be cached by Telegram, so it's not worth remembering
+    private static final long LAST_ANSWERED_TTL_SECONDS = TimeUnit.MINUTES.toSeconds(10);
+
     private final DatabaseController databaseController;
     private final SpotifyController spotifyController;
     private final TelegramController telegramController;
+    private final long freshSeconds;
+    private final int cacheSeconds;
+    private final ExecutorService refreshExecutor;
+
+    // what each user was last shown, so unchanged answers can be cached by Telegram
+    private final Map<Long, SpotifyPlayingData> lastAnswered = new ConcurrentHashMap<>();
+    private final Set<Long> refreshing = ConcurrentHashMap.newKeySet();
+    private volatile long lastPruned;
+
+    public InlineQueryHandler(JsonObject config, DatabaseController databaseController, SpotifyController spotifyController, TelegramController telegramController) {
+        JsonObject tg = ConfigUtil.getObject(config, "telegram");
+
+        this.databaseController = databaseController;
+        this.spotifyController = spotifyController;
+        this.telegramController = telegramController;
+        this.freshSeconds = ConfigUtil.getLong(tg, "inline_fresh_seconds", 20L);
+        this.cacheSeconds = ConfigUtil.getInt(tg, "inline_cache_seconds", 5);
+        int refreshThreads = Math.max(1, ConfigUtil.getInt(tg, "inline_refresh_threads", 2));
+        this.refreshExecutor = new ThreadPoolExecutor(
+                refreshThreads, refreshThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, ConfigUtil.getInt(tg, "inline_refresh_queue", 100))),
+                new NamedThreadFactory("InlineRefresh"));
+    }
 
-    public void onInlineQuery(TelegramBot bot, InlineQuery inlineQuery) {
+    public void onInlineQuery(InlineQuery inlineQuery) {
         try {
             long telegramUserId = inlineQuery.from().id();
             Optional<SpotifyUser> user = databaseController.getSpotifyUser(telegramUserId);
+            if (Instant.now().getEpochSecond() - lastPruned > LAST_ANSWERED_TTL_SECONDS) {
+                prune();
+            }
             if (user.isPresent()) {
-                SpotifyPlayingData track = spotifyController.updatePlayingData(user.get()).orElse(null);
-                bot.execute(
-                        new AnswerInlineQuery(
-                                inlineQuery.id(),
-                                new InlineQueryResultArticle(
-                                        TelegramController.NOW_LISTENING_MSG_UPDATE_FOREVER_ID,
-                                        "Show what music you listen to.",
-                                        new InputTextMessageContent(telegramController.getMessage(track).toHtml())
-                                                .parseMode(ParseMode.HTML)
-                                                .disableWebPagePreview(true)
-                                )
-                                        .description("I'll remain updated as you change songs until you delete the message.")
-                                        .replyMarkup(telegramController.getKeyboard(track)),
-                                new InlineQueryResultArticle(
-                                        TelegramController.NOW_LISTENING_MSG_UPDATE_ONE_DAY_ID,
-                                        "Show what music you listen to.",
-                                        new InputTextMessageContent(telegramController.getMessage(track).toHtml())
-                                                .parseMode(ParseMode.HTML)
-                                                .disableWebPagePreview(true)
-                                )
-                                        .description("I'll remain updated as you change songs for a day.")
-                                        .replyMarkup(telegramController.getKeyboard(track)),
-                                new InlineQueryResultArticle(
-                                        TelegramController.NOW_LISTENING_MSG_NO_UPDATE_ID,
-                                        "Show what music you listen to.",
-                                        new InputTextMessageContent(telegramController.getMessage(track).toHtml())
-                                                .parseMode(ParseMode.HTML)
-                                                .disableWebPagePreview(true)
-                                )
-                                        .description("This message will NOT auto-update.")
-                                        .replyMarkup(telegramController.getKeyboard(track))
-                        )
-                                .cacheTime(0)
-                                .isPersonal(true)
-                );
+                telegramController.getActiveAudience().onInlineQuery(telegramUserId);
+
+                SpotifyUser spotifyUser = user.get();
+                String languageCode = inlineQuery.from().languageCode();
+                if (languageCode != null && !languageCode.equals(spotifyUser.getLanguageCode())) {
+                    // only the language code, so a token refresh happening at the same time isn't undone
+                    databaseController.updateLanguageCode(telegramUserId, languageCode);
+                    spotifyUser = spotifyUser.withLanguageCode(languageCode);
+                }
+                MessageLocale locale = MessageLocale.forLanguage(spotifyUser.getLanguageCode());
+
+                SpotifyPlayingData cached = databaseController.getPlayingData(telegramUserId).orElse(null);
+                if (cached != null && Instant.now().getEpochSecond() - cached.getLastChecked() <= freshSeconds) {
+                    SpotifyPlayingData previous = lastAnswered.put(telegramUserId, cached);
+                    boolean unchanged = cached.equals(previous);
+                    answer(inlineQuery, cached, locale, unchanged ? cacheSeconds : 0);
+                    refreshInBackground(spotifyUser);
+                } else {
+                    SpotifyPlayingData track = spotifyController.updatePlayingData(spotifyUser, Priority.INTERACTIVE).orElse(null);
+                    if (track != null) {
+                        lastAnswered.put(telegramUserId, track);
+                    }
+                    answer(inlineQuery, track, locale, 0);
+                }
             } else {
-                telegramController.getBot().execute(
+                // e.g. after /gdpr or their token was revoked
+                lastAnswered.remove(telegramUserId);
+                telegramController.executeAsync(
                         new AnswerInlineQuery(inlineQuery.id())
                                 .switchPmText("Connect with Spotify")
                                 .switchPmParameter(TelegramController.AUTH_WITH_SPOTIFY_ID)
@@ -77,4 +115,79 @@ public class InlineQueryHandler {
         }
     }
 
+    /**
+     * Forgets what users were shown once it's too old to matter, so users who stop sending queries aren't kept forever.
+     */
+    private void prune() {
+        lastPruned = Instant.now().getEpochSecond();
+        long cutoff = lastPruned - LAST_ANSWERED_TTL_SECONDS;
+        lastAnswered.values().removeIf(answered -> answered.getLastChecked() < cutoff);
+    }
+
+    private void refreshInBackground(SpotifyUser user) {
+        long telegramUserId = user.getTelegramUserId();
+        if (!refreshing.add(telegramUserId)) {
+            return;
+        }
+        try {
+            refreshExecutor.execute(() -> {
+                try {
+                    refresh(user);
+                } finally {
+                    refreshing.remove(telegramUserId);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            // the cached answer will do, and the next query can try again
+            refreshing.remove(telegramUserId);
+        }
+    }
+
+    private void refresh(SpotifyUser user) {
+        try {
+            spotifyController.updatePlayingData(user, Priority.BACKGROUND);
+        } catch (Exception ex) {
+            System.err.format("Failed to refresh playing data for %d after an inline query\n", user.getTelegramUserId());
+            ex.printStackTrace();
+        }
+    }
+
+    private void answer(InlineQuery inlineQuery, SpotifyPlayingData track, MessageLocale locale, int cacheTime) {
+        RenderCache.Rendered rendered = telegramController.getRenderCache().get(track, true, locale);
+        telegramController.executeAsync(
+                new AnswerInlineQuery(
+                        inlineQuery.id(),
+                        new InlineQueryResultArticle(
+                                TelegramController.NOW_LISTENING_MSG_UPDATE_FOREVER_ID,
+                                "Show what music you listen to.",
+                                new InputTextMessageContent(rendered.getHtml())
+                                        .parseMode(ParseMode.HTML)
+                                        .disableWebPagePreview(true)
+                        )
+                                .description("I'll remain updated as you change songs until you delete the message.")
+                                .replyMarkup(rendered.getKeyboard()),
+                        new InlineQueryResultArticle(
+                                TelegramController.NOW_LISTENING_MSG_UPDATE_ONE_DAY_ID,
+                                "Show what music you listen to.",
+                                new InputTextMessageContent(rendered.getHtml())
+                                        .parseMode(ParseMode.HTML)
+                                        .disableWebPagePreview(true)
+                        )
+                                .description("I'll remain updated as you change songs for a day.")
+                                .replyMarkup(rendered.getKeyboard()),
+                        new InlineQueryResultArticle(
+                                TelegramController.NOW_LISTENING_MSG_NO_UPDATE_ID,
+                                "Show what music you listen to.",
+                                new InputTextMessageContent(rendered.getHtml())
+                                        .parseMode(ParseMode.HTML)
+                                        .disableWebPagePreview(true)
+                        )
+                                .description("This message will NOT auto-update.")
+                                .replyMarkup(rendered.getKeyboard())
+                )
+                        .cacheTime(cacheTime)
+                        .isPersonal(true)
+        );
+    }
+
 }
@@ -0,0 +1,77 @@
+package xyz.nickr.telegram.nowlistening.telegram;
+
+import java.util.Locale;
+import java.util.Map;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * The compiled text of every now listening message in one language,
+ * chosen by the language code Telegram reports for the user.
+ *
+ * @author Nick Robson
+ */
+@Getter
+@AllArgsConstructor
+public class MessageLocale {
+
+    private static final String TRACK = "track";
+    private static final String ARTIST = "artist";
+
+    public static final MessageLocale ENGLISH = new MessageLocale(
+            "I'm not listening to Spotify right now \uD83D\uDD07",
+            MessageTemplate.compile("\uD83C\uDFB5 I was last listening to <b>{track}</b> by <i>{artist}</i> \uD83C\uDFB5", TRACK, ARTIST),
+            MessageTemplate.compile("\uD83C\uDFB5 I'm listening to <b>{track}</b> by <i>{artist}</i> \uD83C\uDFB5", TRACK, ARTIST),
+            "\n\n<i>This message has stopped updating.</i>",
+            "Open in Spotify",
+            "Share your music!",
+            "Continue getting updates"
+    );
+
+    private static final Map<String, MessageLocale> LOCALES = Map.of(
+            "en", ENGLISH,
+            "de", new MessageLocale(
+                    "Ich h\u00F6re gerade nichts auf Spotify \uD83D\uDD07",
+                    MessageTemplate.compile("\uD83C\uDFB5 Zuletzt habe ich <b>{track}</b> von <i>{artist}</i> geh\u00F6rt \uD83C\uDFB5", TRACK, ARTIST),
+                    MessageTemplate.compile("\uD83C\uDFB5 Ich h\u00F6re gerade <b>{track}</b> von <i>{artist}</i> \uD83C\uDFB5", TRACK, ARTIST),
+                    "\n\n<i>Diese Nachricht wird nicht mehr aktualisiert.</i>",
+                    "In Spotify \u00F6ffnen",
+                    "Teile deine Musik!",
+                    "Weiter aktualisieren"
+            ),
+            "es", new MessageLocale(
+                    "No estoy escuchando Spotify ahora mismo \uD83D\uDD07",
+                    MessageTemplate.compile("\uD83C\uDFB5 Lo \u00FAltimo que escuch\u00E9 fue <b>{track}</b> de <i>{artist}</i> \uD83C\uDFB5", TRACK, ARTIST),
+                    MessageTemplate.compile("\uD83C\uDFB5 Estoy escuchando <b>{track}</b> de <i>{artist}</i> \uD83C\uDFB5", TRACK, ARTIST),
+                    "\n\n<i>Este mensaje ha dejado de actualizarse.</i>",
+                    "Abrir en Spotify",
+                    "\u00A1Comparte tu m\u00FAsica!",
+                    "Seguir recibiendo actualizaciones"
+            )
+    );
+
+    /** already escaped */
+    private final String notListening;
+    private final MessageTemplate lastListening;
+    private final MessageTemplate listening;
+    /** already escaped, and includes the blank line separating it from the message */
+    private final String stoppedUpdating;
+
+    private final String openInSpotifyButton;
+    private final String shareButton;
+    private final String continueUpdatesButton;
+
+    /**
+     * @param languageCode an IETF language tag such as "en" or "pt-br", or null
+     * @return the matching locale, or English if there isn't one
+     */
+    public static MessageLocale forLanguage(String languageCode) {
+        if (languageCode == null) {
+            return ENGLISH;
+        }
+        int dash = languageCode.indexOf('-');
+        String language = (dash >= 0 ? languageCode.substring(0, dash) : languageCode).toLowerCase(Locale.ENGLISH);
+        return LOCALES.getOrDefault(language, ENGLISH);
+    }
+
+}
@@ -0,0 +1,76 @@
+package xyz.nickr.telegram.nowlistening.telegram;
+
+import com.jtelegram.api.util.TextBuilder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A message template compiled once into its static HTML and the slots
+ * between them, so rendering is just escaping the values into place.
+ *
+ * Templates are written in Telegram's HTML with {@code {name}} placeholders,
+ * so their static text must already be escaped.
+ *
+ * @author Nick Robson
+ */
+public class MessageTemplate {
+
+    private final String[] parts;
+    private final int[] slots;
+    private final int staticLength;
+
+    private MessageTemplate(String[] parts, int[] slots) {
+        this.parts = parts;
+        this.slots = slots;
+        int length = 0;
+        for (String part : parts) {
+            length += part.length();
+        }
+        this.staticLength = length;
+    }
+
+    /**
+     * @param names the placeholder names, in the order their values will be passed to {@link #render(String...)}
+     */
+    public static MessageTemplate compile(String html, String... names) {
+        List<String> parts = new ArrayList<>();
+        List<Integer> slots = new ArrayList<>();
+        int start = 0;
+        int open;
+        while ((open = html.indexOf('{', start)) >= 0) {
+            int close = html.indexOf('}', open);
+            if (close < 0) {
+                throw new IllegalArgumentException("Unclosed placeholder in template: " + html);
+            }
+            String name = html.substring(open + 1, close);
+            int slot = List.of(names).indexOf(name);
+            if (slot < 0) {
+                throw new IllegalArgumentException("Unknown placeholder {" + name + "} in template: " + html);
+            }
+            parts.add(html.substring(start, open));
+            slots.add(slot);
+            start = close + 1;
+        }
+        parts.add(html.substring(start));
+        return new MessageTemplate(parts.toArray(new String[0]), slots.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    public String render(String... values) {
+        int capacity = staticLength;
+        for (int slot : slots) {
+            capacity += values[slot].length() + 8;
+        }
+        StringBuilder builder = new StringBuilder(capacity);
+        appendTo(builder, values);
+        return builder.toString();
+    }
+
+    public StringBuilder appendTo(StringBuilder builder, String... values) {
+        for (int i = 0; i < slots.length; i++) {
+            builder.append(parts[i]);
+            TextBuilder.appendEscaped(builder, values[slots[i]]);
+        }
+        return builder.append(parts[slots.length]);
+    }
+
+}
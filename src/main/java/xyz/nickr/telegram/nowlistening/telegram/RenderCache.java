@@ -0,0 +1,92 @@
+package xyz.nickr.telegram.nowlistening.telegram;
+
+import com.pengrad.telegrambot.model.request.InlineKeyboardMarkup;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import xyz.nickr.telegram.nowlistening.db.models.SpotifyPlayingData;
+
+/**
+ * Caches the rendered text and keyboard for each user's current playing data,
+ * so every message and inline result showing the same state shares one copy.
+ *
+ * A user's entry is replaced as soon as it's asked for with different playing data
+ * or in a different language.
+ *
+ * @author Nick Robson
+ */
+public class RenderCache {
+
+    private final TelegramController telegramController;
+    private final Map<Long, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<MessageLocale, Entry> nothingPlaying = new ConcurrentHashMap<>();
+
+    public RenderCache(TelegramController telegramController) {
+        this.telegramController = telegramController;
+    }
+
+    public Rendered get(SpotifyPlayingData playingData, boolean enabled, MessageLocale locale) {
+        if (playingData == null) {
+            return nothingPlaying.computeIfAbsent(locale, l -> new Entry(null, l)).get(enabled);
+        }
+        Entry entry = entries.get(playingData.getTelegramUserId());
+        if (entry == null || !entry.matches(playingData, locale)) {
+            entry = new Entry(playingData, locale);
+            entries.put(playingData.getTelegramUserId(), entry);
+        }
+        return entry.get(enabled);
+    }
+
+    public void invalidate(long telegramUserId) {
+        entries.remove(telegramUserId);
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static class Rendered {
+
+        private final String html;
+        private final InlineKeyboardMarkup keyboard;
+
+    }
+
+    private class Entry {
+
+        private final SpotifyPlayingData playingData;
+        private final MessageLocale locale;
+        // rendered lazily; racing threads may both render, but they'll produce the same thing
+        private volatile Rendered enabled;
+        private volatile Rendered disabled;
+
+        private Entry(SpotifyPlayingData playingData, MessageLocale locale) {
+            this.playingData = playingData;
+            this.locale = locale;
+        }
+
+        private boolean matches(SpotifyPlayingData other, MessageLocale otherLocale) {
+            // equals() ignores the url, which the keyboard links to
+            return locale == otherLocale
+                    && playingData.equals(other)
+                    && Objects.equals(playingData.getLastTrackUrl(), other.getLastTrackUrl());
+        }
+
+        private Rendered get(boolean isEnabled) {
+            Rendered rendered = isEnabled ? enabled : disabled;
+            if (rendered == null) {
+                rendered = new Rendered(
+                        telegramController.getMessage(playingData, isEnabled, locale),
+                        telegramController.getKeyboard(playingData, isEnabled, locale));
+                if (isEnabled) {
+                    enabled = rendered;
+                } else {
+                    disabled = rendered;
+                }
+            }
+            return rendered;
+        }
+
+    }
+
+}
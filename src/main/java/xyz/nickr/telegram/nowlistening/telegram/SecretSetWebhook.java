@@ -0,0 +1,18 @@
+package xyz.nickr.telegram.nowlistening.telegram;
+
+import com.pengrad.telegrambot.request.SetWebhook;
+
+/**
+ * A {@link SetWebhook} that can also set the webhook's secret token,
+ * which Telegram then sends back on every request it makes to us.
+ *
+ * @author Nick Robson
+ */
+public class SecretSetWebhook extends SetWebhook {
+
+    public SecretSetWebhook secretToken(String secretToken) {
+        add("secret_token", secretToken);
+        return this;
+    }
+
+}
@@ -1,9 +1,8 @@
 package xyz.nickr.telegram.nowlistening.telegram;
 
 import com.google.gson.JsonObject;
-import com.jtelegram.api.util.TextBuilder;
 import com.pengrad.telegrambot.TelegramBot;
-import com.pengrad.telegrambot.TelegramException;
+import com.pengrad.telegrambot.Callback;
 import com.pengrad.telegrambot.UpdatesListener;
 import com.pengrad.telegrambot.model.Chat;
 import com.pengrad.telegrambot.model.Message;
@@ -11,24 +10,43 @@ import com.pengrad.telegrambot.model.Update;
 import com.pengrad.telegrambot.model.request.InlineKeyboardButton;
 import com.pengrad.telegrambot.model.request.InlineKeyboardMarkup;
 import com.pengrad.telegrambot.model.request.ParseMode;
+import com.pengrad.telegrambot.request.BaseRequest;
+import com.pengrad.telegrambot.request.DeleteWebhook;
 import com.pengrad.telegrambot.request.EditMessageText;
 import com.pengrad.telegrambot.request.GetMe;
 import com.pengrad.telegrambot.request.SendMessage;
+import com.pengrad.telegrambot.response.BaseResponse;
 import com.pengrad.telegrambot.response.GetMeResponse;
 import lombok.Getter;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
 import xyz.nickr.telegram.nowlistening.db.DatabaseController;
 import xyz.nickr.telegram.nowlistening.db.models.NowListeningMessage;
 import xyz.nickr.telegram.nowlistening.db.models.SpotifyPlayingData;
+import xyz.nickr.telegram.nowlistening.db.models.SpotifyUser;
+import xyz.nickr.telegram.nowlistening.db.models.UserSnapshot;
+import xyz.nickr.telegram.nowlistening.metrics.Counter;
+import xyz.nickr.telegram.nowlistening.metrics.Histogram;
+import xyz.nickr.telegram.nowlistening.metrics.Metrics;
+import xyz.nickr.telegram.nowlistening.scheduler.ActiveAudience;
+import xyz.nickr.telegram.nowlistening.scheduler.ShardCoordinator;
 import xyz.nickr.telegram.nowlistening.spotify.SpotifyController;
 import xyz.nickr.telegram.nowlistening.telegram.commands.GdprCommand;
 import xyz.nickr.telegram.nowlistening.telegram.commands.StartCommand;
+import xyz.nickr.telegram.nowlistening.util.ConfigUtil;
 
+import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Semaphore;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 /**
  * @author Nick Robson
@@ -41,25 +59,80 @@ public class TelegramController {
     public static final String NOW_LISTENING_MSG_NO_UPDATE_ID = "NowListeningNoUpdate";
     public static final String CONTINUE_GETTING_UPDATES = "ContinueGettingUpdates";
 
+    private static final Metrics.Family<Histogram> REQUEST_SECONDS = Metrics.histogram(
+            "nowlistening_telegram_request_seconds", "Latency of asynchronous Telegram API calls", "method");
+    private static final Metrics.Family<Counter> ERRORS = Metrics.counter(
+            "nowlistening_telegram_errors_total", "Failed Telegram API calls by method and kind of error", "method", "type");
+
+    private final JsonObject config;
     private final String apiKey;
+    private final String apiUrl;
     private final DatabaseController databaseController;
     private final SpotifyController spotifyController;
+    @Getter
+    private final ActiveAudience activeAudience;
+    @Getter
+    private final ShardCoordinator shardCoordinator;
+    private final EditQueue editQueue;
+    @Getter
+    private final RenderCache renderCache;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    @Getter
+    private final UpdateDispatcher updateDispatcher;
+    private final boolean receiveUpdates;
+    private final boolean webhookEnabled;
+    private final String webhookUrl;
+    private final String webhookSecretToken;
+
+    private StartCommand startCommand;
+    private GdprCommand gdprCommand;
+    private InlineQueryHandler inlineQueryHandler;
+    private ChosenInlineResultHandler chosenInlineResultHandler;
+    private CallbackQueryHandler callbackQueryHandler;
 
     @Getter
     private volatile TelegramBot bot;
     @Getter
     private volatile String botUsername;
 
-    public TelegramController(JsonObject config, DatabaseController databaseController, SpotifyController spotifyController) {
+    public TelegramController(JsonObject config, DatabaseController databaseController, SpotifyController spotifyController, ActiveAudience activeAudience, ShardCoordinator shardCoordinator) {
         JsonObject tg = config.getAsJsonObject("telegram");
 
+        this.config = config;
         this.apiKey = tg.getAsJsonPrimitive("api_key").getAsString();
+        this.apiUrl = ConfigUtil.getString(tg, "api_url", "https://api.telegram.org/bot");
         this.databaseController = databaseController;
         this.spotifyController = spotifyController;
+        this.activeAudience = activeAudience;
+        this.shardCoordinator = shardCoordinator;
+        this.editQueue = new EditQueue(config, this);
+        this.renderCache = new RenderCache(this);
+        this.maxInFlight = Math.max(1, ConfigUtil.getInt(tg, "max_in_flight", 32));
+        this.inFlight = new Semaphore(maxInFlight);
+        this.updateDispatcher = new UpdateDispatcher(config, this::handleUpdate);
+        // only one node sharing a bot token may long-poll or set its webhook
+        this.receiveUpdates = ConfigUtil.getBoolean(tg, "receive_updates", true);
+
+        JsonObject webhook = ConfigUtil.getObject(tg, "webhook");
+        this.webhookEnabled = ConfigUtil.getBoolean(webhook, "enabled", false);
+        this.webhookUrl = ConfigUtil.getString(webhook, "url", null);
+        this.webhookSecretToken = ConfigUtil.getString(webhook, "secret_token", "");
+        if (webhookEnabled && (webhookUrl == null || webhookSecretToken.isEmpty())) {
+            throw new IllegalArgumentException("telegram.webhook needs a url and secret_token when enabled");
+        }
     }
 
     public void start(Runnable onReady) {
-        this.bot = new TelegramBot(apiKey);
+        // OkHttp only sends 5 requests to a host at once by default, which would quietly cap max_in_flight;
+        // the extra one is for the getUpdates long poll, which doesn't go through the semaphore
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(maxInFlight + 1);
+        dispatcher.setMaxRequestsPerHost(maxInFlight + 1);
+        this.bot = new TelegramBot.Builder(apiKey)
+                .apiUrl(apiUrl)
+                .okHttpClient(new OkHttpClient.Builder().dispatcher(dispatcher).build())
+                .build();
 
         try {
             GetMeResponse response = this.bot.execute(new GetMe());
@@ -72,174 +145,294 @@ public class TelegramController {
             throw new RuntimeException("Failed to login to Telegram", ex);
         }
 
-        StartCommand startCommand = new StartCommand(databaseController, spotifyController);
-        GdprCommand gdprCommand = new GdprCommand(databaseController, this);
+        this.startCommand = new StartCommand(databaseController, spotifyController);
+        this.gdprCommand = new GdprCommand(databaseController, this);
 
-        InlineQueryHandler inlineQueryHandler = new InlineQueryHandler(databaseController, spotifyController, this);
-        ChosenInlineResultHandler chosenInlineResultHandler = new ChosenInlineResultHandler(databaseController, this);
-        CallbackQueryHandler callbackQueryHandler = new CallbackQueryHandler(databaseController, this, gdprCommand);
+        this.inlineQueryHandler = new InlineQueryHandler(config, databaseController, spotifyController, this);
+        this.chosenInlineResultHandler = new ChosenInlineResultHandler(databaseController, this);
+        this.callbackQueryHandler = new CallbackQueryHandler(databaseController, this, gdprCommand);
 
-        this.bot.setUpdatesListener(updates -> {
-            try {
-                for (Update update : updates) {
-                    if (update.inlineQuery() != null) {
-                        inlineQueryHandler.onInlineQuery(bot, update.inlineQuery());
-                    }
-                    if (update.chosenInlineResult() != null) {
-                        chosenInlineResultHandler.onChosenInlineResult(update.chosenInlineResult());
-                    }
-                    if (update.callbackQuery() != null) {
-                        callbackQueryHandler.onCallbackQuery(update.callbackQuery());
-                    }
-                    if (update.message() != null && update.message().text() != null) {
-                        Message message = update.message();
-                        if (message.chat().type() != Chat.Type.Private)
-                            continue;
-                        String text = message.text();
-                        if (!text.startsWith("/"))
-                            continue;
-                        String[] commandWords = text.split("\s+");
-                        String[] commandParts = commandWords[0].split("@", 2);
-                        String command = commandParts[0].toLowerCase(Locale.ENGLISH);
-                        if ("/start".equals(command)) {
-                            startCommand.onCommand(bot, message);
-                        } else if ("/gdpr".equals(command)) {
-                            gdprCommand.onCommand(bot, message);
-                        } else {
-                            bot.execute(new SendMessage(message.chat().id(), "Unknown command"));
-                        }
-                    }
-                }
-            } catch (Exception ex) {
-                ex.printStackTrace();
+        this.updateDispatcher.start();
+        if (!receiveUpdates) {
+            System.out.format("[NowListening] Not registering for updates, another node receives them\n");
+        } else if (webhookEnabled) {
+            BaseResponse webhookResponse = this.bot.execute(new SecretSetWebhook().secretToken(webhookSecretToken).url(webhookUrl));
+            if (!webhookResponse.isOk()) {
+                throw new RuntimeException("Failed to set Telegram webhook: " + webhookResponse.description());
             }
-            return UpdatesListener.CONFIRMED_UPDATES_ALL;
-        }, Throwable::printStackTrace);
+            System.out.format("[NowListening] Receiving updates by webhook at %s\n", webhookUrl);
+        } else {
+            // getUpdates is refused while a webhook is set
+            this.bot.execute(new DeleteWebhook());
+            this.bot.setUpdatesListener(updates -> {
+                updates.forEach(updateDispatcher::dispatch);
+                return UpdatesListener.CONFIRMED_UPDATES_ALL;
+            }, Throwable::printStackTrace);
+        }
 
-        this.spotifyController.addListener(playingData -> updateEnabledNowListeningMessages(playingData.getTelegramUserId()));
+        this.editQueue.start();
+        this.spotifyController.addListener(snapshot -> {
+            // an update handled here may refresh a user another node owns, which notices the change itself
+            if (shardCoordinator.owns(snapshot.getTelegramUserId())) {
+                updateEnabledNowListeningMessages(snapshot);
+            }
+        });
 
         onReady.run();
     }
 
+    /**
+     * Handles a single update. Called on the update's dispatcher lane.
+     */
+    public void handleUpdate(Update update) {
+        try {
+            if (update.inlineQuery() != null) {
+                inlineQueryHandler.onInlineQuery(update.inlineQuery());
+            }
+            if (update.chosenInlineResult() != null) {
+                chosenInlineResultHandler.onChosenInlineResult(update.chosenInlineResult());
+            }
+            if (update.callbackQuery() != null) {
+                callbackQueryHandler.onCallbackQuery(update.callbackQuery());
+            }
+            if (update.message() != null && update.message().text() != null) {
+                Message message = update.message();
+                if (message.chat().type() != Chat.Type.Private)
+                    return;
+                String text = message.text();
+                if (!text.startsWith("/"))
+                    return;
+                String[] commandWords = text.split("\s+");
+                String[] commandParts = commandWords[0].split("@", 2);
+                String command = commandParts[0].toLowerCase(Locale.ENGLISH);
+                if ("/start".equals(command)) {
+                    startCommand.onCommand(bot, message);
+                } else if ("/gdpr".equals(command)) {
+                    gdprCommand.onCommand(bot, message);
+                } else {
+                    bot.execute(new SendMessage(message.chat().id(), "Unknown command"));
+                }
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+
     public void updateMessage(NowListeningMessage message) throws SQLException {
         SpotifyPlayingData playingData = databaseController.getPlayingData(message.getTelegramUserId()).orElse(null);
-        this.bot.execute(
-                new EditMessageText(message.getInlineMessageId(), getMessage(playingData).toHtml())
-                        .parseMode(ParseMode.HTML)
-                        .replyMarkup(getKeyboard(playingData))
-                        .disableWebPagePreview(true)
-        );
+        editQueue.enqueue(message, getEditRequest(message, render(message.getTelegramUserId(), playingData, true)), true);
     }
 
     public void updateEnabledNowListeningMessages(long telegramUserId) throws SQLException {
         SpotifyPlayingData playingData = databaseController.getPlayingData(telegramUserId).orElse(null);
+        updateEnabledNowListeningMessages(telegramUserId, playingData, databaseController.getEnabledNowListeningMessages(telegramUserId));
+    }
 
-        Set<NowListeningMessage> messageSet = databaseController.getEnabledNowListeningMessages(telegramUserId);
-        for (NowListeningMessage message : messageSet) {
-            try {
-                bot.execute(
-                        new EditMessageText(message.getInlineMessageId(), getMessage(playingData).toHtml())
-                                .parseMode(ParseMode.HTML)
-                                .replyMarkup(getKeyboard(playingData))
-                                .disableWebPagePreview(true)
-                );
-            } catch (Exception ex) {
-                ex.printStackTrace();
-            }
+    public void updateEnabledNowListeningMessages(UserSnapshot snapshot) throws SQLException {
+        Set<NowListeningMessage> messageSet = snapshot.getEnabledMessages();
+        if (messageSet == null) {
+            messageSet = databaseController.getEnabledNowListeningMessages(snapshot.getTelegramUserId());
         }
+        updateEnabledNowListeningMessages(snapshot.getTelegramUserId(), snapshot.getPlayingData(), messageSet);
     }
 
-    public int updateDisabledNowListeningMessages() throws SQLException {
-        Set<NowListeningMessage> messageSet = databaseController.getEnabledMessagesToBeDisabled();
+    private void updateEnabledNowListeningMessages(long telegramUserId, SpotifyPlayingData playingData, Set<NowListeningMessage> messageSet) throws SQLException {
+        if (messageSet.isEmpty()) {
+            return;
+        }
+        RenderCache.Rendered rendered = render(telegramUserId, playingData, true);
         for (NowListeningMessage message : messageSet) {
+            editQueue.enqueue(message, getEditRequest(message, rendered), true);
+        }
+    }
+
+    public Set<NowListeningMessage> updateDisabledNowListeningMessages() throws SQLException {
+        return disableNowListeningMessages(databaseController.getEnabledMessagesToBeDisabled());
+    }
+
+    /**
+     * Disables whichever of the given messages are still enabled and have expired,
+     * and edits them to say they've stopped updating. Messages of users owned by
+     * another node are left for that node to disable.
+     *
+     * @return the messages that were disabled
+     */
+    public Set<NowListeningMessage> disableNowListeningMessages(Collection<NowListeningMessage> candidates) throws SQLException {
+        List<NowListeningMessage> owned = candidates.stream()
+                .filter(message -> shardCoordinator.owns(message.getTelegramUserId()))
+                .collect(Collectors.toList());
+        Set<NowListeningMessage> messageSet = databaseController.disableExpiredMessages(owned);
+
+        // a user's messages all show the same thing, so only load and render it once per user
+        Map<Long, List<NowListeningMessage>> messagesByUser = messageSet.stream()
+                .collect(Collectors.groupingBy(NowListeningMessage::getTelegramUserId, LinkedHashMap::new, Collectors.toList()));
+        for (Map.Entry<Long, List<NowListeningMessage>> entry : messagesByUser.entrySet()) {
             try {
-                long telegramUserId = message.getTelegramUserId();
+                long telegramUserId = entry.getKey();
                 SpotifyPlayingData playingData = databaseController.getPlayingData(telegramUserId).orElse(null);
+                RenderCache.Rendered rendered = render(telegramUserId, playingData, false);
 
-                bot.execute(
-                        new EditMessageText(message.getInlineMessageId(), getMessage(playingData, false).toHtml())
-                                .replyMarkup(getKeyboard(playingData, false))
-                                .disableWebPagePreview(true)
-                );
+                for (NowListeningMessage message : entry.getValue()) {
+                    editQueue.enqueue(message, getEditRequest(message, rendered), false);
+                }
             } catch (Exception ex) {
                 ex.printStackTrace();
             }
         }
-        databaseController.disableMessages(messageSet);
-        return messageSet.size();
+        return messageSet;
     }
 
-    private Consumer<TelegramException> onError(NowListeningMessage message) {
-        return err -> {
-            if (err != null) {
-                if (err.response().description() != null) {
-                    if (err.response().description().contains("MESSAGE_ID_INVALID")) {
-                        try {
-                            databaseController.deleteNowListeningMessage(message);
-                        } catch (SQLException ex) {
-                            ex.printStackTrace();
-                        }
-                    } else if (err.response().description().contains("message is not modified")) {
-                        // we just suppress these...
-                    } else {
-                        err.printStackTrace();
-                    }
-                } else {
-                    err.printStackTrace();
+    private RenderCache.Rendered render(long telegramUserId, SpotifyPlayingData playingData, boolean enabled) throws SQLException {
+        String languageCode = databaseController.getSpotifyUser(telegramUserId)
+                .map(SpotifyUser::getLanguageCode)
+                .orElse(null);
+        return renderCache.get(playingData, enabled, MessageLocale.forLanguage(languageCode));
+    }
+
+    private EditMessageText getEditRequest(NowListeningMessage message, RenderCache.Rendered rendered) {
+        return new EditMessageText(message.getInlineMessageId(), rendered.getHtml())
+                .parseMode(ParseMode.HTML)
+                .replyMarkup(rendered.getKeyboard())
+                .disableWebPagePreview(true);
+    }
+
+    /**
+     * Executes a request without blocking on the network, logging it if it fails.
+     */
+    public <T extends BaseRequest<T, R>, R extends BaseResponse> void executeAsync(T request) {
+        executeAsync(request, response -> {
+            if (!response.isOk()) {
+                logError(request.getMethod(), response);
+            }
+        });
+    }
+
+    /**
+     * Executes a request without blocking on the network, calling {@code onResponse} with
+     * whatever Telegram returns and logging it if it couldn't be sent.
+     */
+    public <T extends BaseRequest<T, R>, R extends BaseResponse> void executeAsync(T request, Consumer<R> onResponse) {
+        executeAsync(request, onResponse, ex -> System.err.format("[NowListening] %s failed: %s\n", request.getMethod(), ex));
+    }
+
+    /**
+     * Executes a request without blocking on the network, calling {@code onResponse} with
+     * whatever Telegram returns, or {@code onFailure} if it couldn't be sent at all.
+     * At most telegram.max_in_flight requests are sent at once, and this blocks while
+     * that many are outstanding.
+     */
+    public <T extends BaseRequest<T, R>, R extends BaseResponse> void executeAsync(T request, Consumer<R> onResponse, Consumer<IOException> onFailure) {
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        long start = System.nanoTime();
+        bot.execute(request, new Callback<T, R>() {
+            @Override
+            public void onResponse(T request, R response) {
+                inFlight.release();
+                REQUEST_SECONDS.labels(request.getMethod()).observeSince(start);
+                if (!response.isOk()) {
+                    ERRORS.labels(request.getMethod(), TelegramError.classify(response).name().toLowerCase(Locale.ENGLISH)).inc();
+                }
+                try {
+                    onResponse.accept(response);
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
+            }
+
+            @Override
+            public void onFailure(T request, IOException ex) {
+                inFlight.release();
+                REQUEST_SECONDS.labels(request.getMethod()).observeSince(start);
+                ERRORS.labels(request.getMethod(), "io").inc();
+                try {
+                    onFailure.accept(ex);
+                } catch (Exception e) {
+                    e.printStackTrace();
                 }
             }
-        };
+        });
+    }
+
+    /**
+     * @return whether the message is still stored and enabled, assuming it is if that can't be checked
+     */
+    boolean isMessageEnabled(NowListeningMessage message) {
+        try {
+            return databaseController.getNowListeningMessage(message.getTelegramUserId(), message.getInlineMessageId())
+                    .map(NowListeningMessage::isEnabled)
+                    .orElse(false);
+        } catch (SQLException ex) {
+            ex.printStackTrace();
+            return true;
+        }
+    }
+
+    /**
+     * Handles a failed edit of a now listening message,
+     * pruning messages that no longer exist so we stop trying to edit them.
+     */
+    void onEditError(NowListeningMessage message, BaseResponse response) {
+        switch (TelegramError.classify(response)) {
+            case MESSAGE_INVALID -> {
+                try {
+                    databaseController.deleteNowListeningMessage(message);
+                    activeAudience.onMessagesRemoved(message.getTelegramUserId());
+                } catch (SQLException ex) {
+                    ex.printStackTrace();
+                }
+            }
+            case NOT_MODIFIED -> {
+                // we just suppress these...
+            }
+            default -> logError(message.getInlineMessageId(), response);
+        }
+    }
+
+    private void logError(String request, BaseResponse response) {
+        System.err.format("[NowListening] Telegram error %d for %s: %s\n", response.errorCode(), request, response.description());
     }
 
-    public TextBuilder getMessage(SpotifyPlayingData track) {
-        return getMessage(track, true);
+    public String getMessage(SpotifyPlayingData track) {
+        return getMessage(track, true, MessageLocale.ENGLISH);
     }
 
-    public TextBuilder getMessage(SpotifyPlayingData track, boolean enabled) {
-        TextBuilder builder;
+    public String getMessage(SpotifyPlayingData track, boolean enabled, MessageLocale locale) {
+        StringBuilder builder = new StringBuilder(128);
         if (track == null) {
-            builder = TextBuilder.create()
-                    .escaped("I'm not listening to Spotify right now \uD83D\uDD07");
+            builder.append(locale.getNotListening());
         } else if (!track.isPlaying()) {
-            builder = TextBuilder.create()
-                    .escaped("I'm not listening to Spotify right now \uD83D\uDD07")
-                    .newLine()
-                    .escaped("\uD83C\uDFB5 I was last listening to ")
-                    .bold(track.getLastTrackName())
-                    .escaped(" by ")
-                    .italics(track.getLastTrackArtist())
-                    .escaped(" \uD83C\uDFB5");
+            builder.append(locale.getNotListening()).append('\n');
+            locale.getLastListening().appendTo(builder, track.getLastTrackName(), track.getLastTrackArtist());
         } else {
-            builder = TextBuilder.create()
-                    .escaped("\uD83C\uDFB5 I'm listening to ")
-                    .bold(track.getLastTrackName())
-                    .escaped(" by ")
-                    .italics(track.getLastTrackArtist())
-                    .escaped(" \uD83C\uDFB5");
+            locale.getListening().appendTo(builder, track.getLastTrackName(), track.getLastTrackArtist());
         }
 
         if (!enabled) {
-            builder.newLine().newLine()
-                    .italics("This message has stopped updating.");
+            builder.append(locale.getStoppedUpdating());
         }
 
-        return builder;
+        return builder.toString();
     }
 
     public InlineKeyboardMarkup getKeyboard(SpotifyPlayingData track) {
-        return getKeyboard(track, true);
+        return getKeyboard(track, true, MessageLocale.ENGLISH);
     }
 
-    public InlineKeyboardMarkup getKeyboard(SpotifyPlayingData track, boolean enabled) {
+    public InlineKeyboardMarkup getKeyboard(SpotifyPlayingData track, boolean enabled, MessageLocale locale) {
         List<InlineKeyboardButton> mainRow = new ArrayList<>();
         if (track != null) {
             mainRow.add(
-                    new InlineKeyboardButton("Open in Spotify").url(track.getLastTrackUrl())
+                    new InlineKeyboardButton(locale.getOpenInSpotifyButton()).url(track.getLastTrackUrl())
             );
         }
 
         mainRow.add(
-                new InlineKeyboardButton("Share your music!").switchInlineQuery("")
+                new InlineKeyboardButton(locale.getShareButton()).switchInlineQuery("")
         );
 
         if (enabled) {
@@ -251,7 +444,7 @@ public class TelegramController {
         return new InlineKeyboardMarkup(
                 mainRow.toArray(new InlineKeyboardButton[0]),
                 new InlineKeyboardButton[]{
-                        new InlineKeyboardButton("Continue getting updates").callbackData(CONTINUE_GETTING_UPDATES)
+                        new InlineKeyboardButton(locale.getContinueUpdatesButton()).callbackData(CONTINUE_GETTING_UPDATES)
                 }
         );
     }
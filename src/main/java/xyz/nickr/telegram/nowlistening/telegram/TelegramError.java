@@ -0,0 +1,39 @@
+package xyz.nickr.telegram.nowlistening.telegram;
+
+import com.pengrad.telegrambot.response.BaseResponse;
+
+/**
+ * The kinds of failed Telegram responses we handle differently.
+ *
+ * @author Nick Robson
+ */
+public enum TelegramError {
+
+    /** The edit didn't change anything, which is harmless. */
+    NOT_MODIFIED,
+    /** The message no longer exists or can't be edited by us any more. */
+    MESSAGE_INVALID,
+    /** We've hit a rate limit and should wait for the retry_after period. */
+    RATE_LIMITED,
+    /** Anything else, which is worth logging. */
+    OTHER;
+
+    public static TelegramError classify(BaseResponse response) {
+        if (response.errorCode() == 429) {
+            return RATE_LIMITED;
+        }
+        String description = response.description();
+        if (description != null) {
+            if (description.contains("message is not modified")) {
+                return NOT_MODIFIED;
+            }
+            if (description.contains("MESSAGE_ID_INVALID")
+                    || description.contains("message to edit not found")
+                    || description.contains("message can't be edited")) {
+                return MESSAGE_INVALID;
+            }
+        }
+        return OTHER;
+    }
+
+}
@@ -0,0 +1,111 @@
+package xyz.nickr.telegram.nowlistening.telegram;
+
+import com.google.gson.JsonObject;
+import com.pengrad.telegrambot.model.Update;
+import com.pengrad.telegrambot.model.User;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+import xyz.nickr.telegram.nowlistening.metrics.Metrics;
+import xyz.nickr.telegram.nowlistening.util.ConfigUtil;
+import xyz.nickr.telegram.nowlistening.util.NamedThreadFactory;
+
+/**
+ * Handles updates on a fixed number of lanes, each with its own thread.
+ *
+ * Updates are assigned to a lane by the id of the user who sent them,
+ * so each user's updates are still handled in order while one slow user
+ * can only hold up the users that share their lane.
+ *
+ * @author Nick Robson
+ */
+public class UpdateDispatcher {
+
+    private final Consumer<Update> handler;
+    private final BlockingQueue<Update>[] lanes;
+    private final int warnDepth;
+
+    @SuppressWarnings("unchecked")
+    public UpdateDispatcher(JsonObject config, Consumer<Update> handler) {
+        JsonObject tg = ConfigUtil.getObject(config, "telegram");
+
+        int laneCount = ConfigUtil.getInt(tg, "update_lanes", 8);
+        if (laneCount < 1) {
+            throw new IllegalArgumentException("telegram.update_lanes must be at least 1");
+        }
+
+        this.handler = handler;
+        this.lanes = new BlockingQueue[laneCount];
+        this.warnDepth = ConfigUtil.getInt(tg, "update_lane_warn_depth", 100);
+        for (int i = 0; i < laneCount; i++) {
+            this.lanes[i] = new LinkedBlockingQueue<>();
+        }
+
+        Metrics.gauge("nowlistening_update_lane_depth", "Updates waiting on each dispatcher lane", "lane", () -> {
+            Map<String, Integer> depths = new LinkedHashMap<>();
+            int[] queueDepths = getQueueDepths();
+            for (int i = 0; i < queueDepths.length; i++) {
+                depths.put(Integer.toString(i), queueDepths[i]);
+            }
+            return depths;
+        });
+    }
+
+    public void start() {
+        NamedThreadFactory threadFactory = new NamedThreadFactory("UpdateDispatcher");
+        for (BlockingQueue<Update> lane : lanes) {
+            threadFactory.newThread(() -> work(lane)).start();
+        }
+    }
+
+    public void dispatch(Update update) {
+        int laneIndex = Math.floorMod(Long.hashCode(senderId(update)), lanes.length);
+        BlockingQueue<Update> lane = lanes[laneIndex];
+        lane.add(update);
+
+        if (lane.size() == warnDepth) {
+            System.err.format("[NowListening] Update lane %d has %d updates waiting.\n", laneIndex, warnDepth);
+        }
+    }
+
+    /**
+     * @return how many updates are waiting on each lane
+     */
+    public int[] getQueueDepths() {
+        int[] depths = new int[lanes.length];
+        for (int i = 0; i < lanes.length; i++) {
+            depths[i] = lanes[i].size();
+        }
+        return depths;
+    }
+
+    private static long senderId(Update update) {
+        User from = null;
+        if (update.inlineQuery() != null) {
+            from = update.inlineQuery().from();
+        } else if (update.chosenInlineResult() != null) {
+            from = update.chosenInlineResult().from();
+        } else if (update.callbackQuery() != null) {
+            from = update.callbackQuery().from();
+        } else if (update.message() != null) {
+            from = update.message().from();
+        }
+        // updates without a sender have no ordering to keep, so spread them out
+        return from != null ? from.id() : update.updateId();
+    }
+
+    private void work(BlockingQueue<Update> lane) {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                handler.accept(lane.take());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+}
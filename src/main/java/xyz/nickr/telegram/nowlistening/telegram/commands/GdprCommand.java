@@ -233,20 +233,28 @@ public class GdprCommand {
                 if (clearingData == null)
                     return;
                 switch (clearingData) {
-                    case MESSAGES -> this.databaseController.deleteAllMessages(telegramUserId);
+                    case MESSAGES -> {
+                        this.databaseController.deleteAllMessages(telegramUserId);
+                        this.telegramController.getActiveAudience().onMessagesRemoved(telegramUserId);
+                    }
                     case USER_DATA -> this.databaseController.deleteSpotifyUser(telegramUserId);
-                    case PLAYING_DATA -> this.databaseController.deletePlayingData(telegramUserId);
+                    case PLAYING_DATA -> {
+                        this.databaseController.deletePlayingData(telegramUserId);
+                        this.telegramController.getRenderCache().invalidate(telegramUserId);
+                    }
                     case EVERYTHING -> {
                         this.databaseController.deleteAllMessages(telegramUserId);
+                        this.telegramController.getActiveAudience().onMessagesRemoved(telegramUserId);
                         this.databaseController.deleteSpotifyUser(telegramUserId);
                         this.databaseController.deletePlayingData(telegramUserId);
+                        this.telegramController.getRenderCache().invalidate(telegramUserId);
                     }
                     default -> System.err.println("UNEXPECTED CLEARING DATA MODE: is " + clearingData.name());
                 }
                 mode = Mode.DATA_CLEARED;
             }
 
-            telegramController.getBot().execute(
+            telegramController.executeAsync(
                     new EditMessageText(message.chat().id(), message.messageId(), getMenuMessage(telegramUserId, mode, clearingData).toHtml())
                             .parseMode(ParseMode.HTML)
                             .disableWebPagePreview(true)
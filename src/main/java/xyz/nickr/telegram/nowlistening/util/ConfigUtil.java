@@ -0,0 +1,44 @@
+package xyz.nickr.telegram.nowlistening.util;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Helpers for reading optional values from config.json, so that
+ * existing configuration files keep working as new keys are added.
+ *
+ * @author Nick Robson
+ */
+public class ConfigUtil {
+
+    public static JsonObject getObject(JsonObject config, String key) {
+        JsonElement element = config != null ? config.get(key) : null;
+        return element != null && element.isJsonObject() ? element.getAsJsonObject() : new JsonObject();
+    }
+
+    public static int getInt(JsonObject config, String key, int defaultValue) {
+        JsonElement element = config != null ? config.get(key) : null;
+        return element != null && !element.isJsonNull() ? element.getAsInt() : defaultValue;
+    }
+
+    public static long getLong(JsonObject config, String key, long defaultValue) {
+        JsonElement element = config != null ? config.get(key) : null;
+        return element != null && !element.isJsonNull() ? element.getAsLong() : defaultValue;
+    }
+
+    public static double getDouble(JsonObject config, String key, double defaultValue) {
+        JsonElement element = config != null ? config.get(key) : null;
+        return element != null && !element.isJsonNull() ? element.getAsDouble() : defaultValue;
+    }
+
+    public static boolean getBoolean(JsonObject config, String key, boolean defaultValue) {
+        JsonElement element = config != null ? config.get(key) : null;
+        return element != null && !element.isJsonNull() ? element.getAsBoolean() : defaultValue;
+    }
+
+    public static String getString(JsonObject config, String key, String defaultValue) {
+        JsonElement element = config != null ? config.get(key) : null;
+        return element != null && !element.isJsonNull() ? element.getAsString() : defaultValue;
+    }
+
+}
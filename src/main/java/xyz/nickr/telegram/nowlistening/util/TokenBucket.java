@@ -0,0 +1,58 @@
+package xyz.nickr.telegram.nowlistening.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket rate limiter: up to {@code capacity} permits can be taken
+ * at once, refilling at {@code permitsPerSecond}.
+ *
+ * @author Nick Robson
+ */
+public class TokenBucket {
+
+    private final double capacity;
+    private final double permitsPerSecond;
+    private double tokens;
+    private long lastRefillNanos;
+
+    public TokenBucket(double capacity, double permitsPerSecond) {
+        if (capacity < 1 || permitsPerSecond <= 0) {
+            throw new IllegalArgumentException("capacity must be at least 1 and permitsPerSecond must be positive");
+        }
+        this.capacity = capacity;
+        this.permitsPerSecond = permitsPerSecond;
+        this.tokens = capacity;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * permitsPerSecond / TimeUnit.SECONDS.toNanos(1));
+        lastRefillNanos = now;
+    }
+
+    /**
+     * Takes a permit if one is available.
+     *
+     * @return 0 if a permit was taken, otherwise how many nanoseconds until one will be available
+     */
+    public synchronized long tryAcquire() {
+        refill();
+        if (tokens >= 1) {
+            tokens -= 1;
+            return 0L;
+        }
+        return (long) Math.ceil((1 - tokens) / permitsPerSecond * TimeUnit.SECONDS.toNanos(1));
+    }
+
+    /**
+     * Blocks until a permit is available, then takes it.
+     */
+    public void acquire() throws InterruptedException {
+        long waitNanos;
+        while ((waitNanos = tryAcquire()) > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+}
@@ -12,6 +12,7 @@ import org.glassfish.grizzly.http.util.ContentType;
 import org.glassfish.grizzly.http.util.HttpStatus;
 import xyz.nickr.telegram.nowlistening.db.DatabaseController;
 import xyz.nickr.telegram.nowlistening.spotify.SpotifyController;
+import xyz.nickr.telegram.nowlistening.spotify.SpotifyGovernor.Priority;
 import xyz.nickr.telegram.nowlistening.telegram.TelegramController;
 
 import java.util.Optional;
@@ -54,10 +55,10 @@ public class LoginHttpHandler extends HttpHandler {
         }
 
         if (code != null) {
-            AuthorizationCodeCredentials credentials = spotifyController.getApi()
+            AuthorizationCodeCredentials credentials = spotifyController.getGovernor().execute(Priority.INTERACTIVE, () -> spotifyController.getApi()
                     .authorizationCode(code)
                     .build()
-                    .execute();
+                    .execute());
 
             spotifyController.updateSpotifyUser(telegramUserId, credentials);
 
@@ -0,0 +1,29 @@
+package xyz.nickr.telegram.nowlistening.web;
+
+import org.glassfish.grizzly.http.Method;
+import org.glassfish.grizzly.http.server.HttpHandler;
+import org.glassfish.grizzly.http.server.Request;
+import org.glassfish.grizzly.http.server.Response;
+import org.glassfish.grizzly.http.util.HttpStatus;
+import xyz.nickr.telegram.nowlistening.metrics.Metrics;
+
+/**
+ * Serves every registered metric in the Prometheus text format.
+ *
+ * @author Nick Robson
+ */
+public class MetricsHttpHandler extends HttpHandler {
+
+    @Override
+    public void service(Request request, Response response) throws Exception {
+        if (request.getMethod() != Method.GET) {
+            response.sendError(405, "Method not allowed");
+            return;
+        }
+
+        response.setStatus(HttpStatus.OK_200);
+        response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+        response.getWriter().write(Metrics.scrape());
+    }
+
+}
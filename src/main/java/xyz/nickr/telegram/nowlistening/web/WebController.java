@@ -7,6 +7,7 @@ import org.glassfish.grizzly.http.server.ServerConfiguration;
 import xyz.nickr.telegram.nowlistening.spotify.SpotifyController;
 import xyz.nickr.telegram.nowlistening.db.DatabaseController;
 import xyz.nickr.telegram.nowlistening.telegram.TelegramController;
+import xyz.nickr.telegram.nowlistening.util.ConfigUtil;
 
 /**
  * @author Nick Robson
@@ -14,6 +15,7 @@ import xyz.nickr.telegram.nowlistening.telegram.TelegramController;
 public class WebController {
 
     private final HttpServer server;
+    private final HttpServer metricsServer;
 
     public WebController(JsonObject config, DatabaseController databaseController, SpotifyController spotifyController, TelegramController telegramController) {
         JsonObject web = config.getAsJsonObject("webserver");
@@ -23,13 +25,38 @@ public class WebController {
 
         ServerConfiguration webConfig = server.getServerConfiguration();
         webConfig.addHttpHandler(new LoginHttpHandler(spotifyController, databaseController, telegramController), "/login");
+
+        // metrics are unauthenticated, so they're off unless asked for and can get a listener of their own
+        int metricsPort = ConfigUtil.getInt(web, "metrics_port", 0);
+        if (!ConfigUtil.getBoolean(web, "metrics_enabled", false)) {
+            this.metricsServer = null;
+        } else if (metricsPort > 0) {
+            this.metricsServer = HttpServer.createSimpleServer(null, ConfigUtil.getString(web, "metrics_host", "127.0.0.1"), metricsPort);
+            this.metricsServer.getServerConfiguration().addHttpHandler(new MetricsHttpHandler(), "/metrics");
+        } else {
+            this.metricsServer = null;
+            webConfig.addHttpHandler(new MetricsHttpHandler(), "/metrics");
+        }
+
+        JsonObject webhook = ConfigUtil.getObject(ConfigUtil.getObject(config, "telegram"), "webhook");
+        if (ConfigUtil.getBoolean(webhook, "enabled", false)) {
+            webConfig.addHttpHandler(
+                    new WebhookHttpHandler(ConfigUtil.getString(webhook, "secret_token", ""), telegramController.getUpdateDispatcher()),
+                    ConfigUtil.getString(webhook, "path", "/telegram"));
+        }
     }
 
     public void start() throws IOException {
         server.start();
+        if (metricsServer != null) {
+            metricsServer.start();
+        }
     }
 
     public void shutdown() {
         server.shutdown();
+        if (metricsServer != null) {
+            metricsServer.shutdown();
+        }
     }
 }
@@ -0,0 +1,62 @@
+package xyz.nickr.telegram.nowlistening.web;
+
+import com.pengrad.telegrambot.BotUtils;
+import com.pengrad.telegrambot.model.Update;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import lombok.AllArgsConstructor;
+import org.glassfish.grizzly.http.Method;
+import org.glassfish.grizzly.http.server.HttpHandler;
+import org.glassfish.grizzly.http.server.Request;
+import org.glassfish.grizzly.http.server.Response;
+import org.glassfish.grizzly.http.util.HttpStatus;
+import xyz.nickr.telegram.nowlistening.telegram.UpdateDispatcher;
+
+/**
+ * Receives updates pushed by Telegram when running in webhook mode.
+ *
+ * Updates are parsed straight from the request body and handed to the
+ * dispatcher, and Telegram is acknowledged without waiting for them to be handled.
+ *
+ * @author Nick Robson
+ */
+@AllArgsConstructor
+public class WebhookHttpHandler extends HttpHandler {
+
+    public static final String SECRET_TOKEN_HEADER = "X-Telegram-Bot-Api-Secret-Token";
+
+    private final String secretToken;
+    private final UpdateDispatcher updateDispatcher;
+
+    @Override
+    public void service(Request request, Response response) throws Exception {
+        if (request.getMethod() != Method.POST) {
+            response.sendError(405, "Method not allowed");
+            return;
+        }
+
+        String token = request.getHeader(SECRET_TOKEN_HEADER);
+        if (token == null || !MessageDigest.isEqual(
+                token.getBytes(StandardCharsets.UTF_8),
+                secretToken.getBytes(StandardCharsets.UTF_8))) {
+            response.sendError(403, "Forbidden");
+            return;
+        }
+
+        Update update;
+        try {
+            update = BotUtils.parseUpdate(request.getReader());
+        } catch (Exception ex) {
+            response.sendError(400, "Invalid update");
+            return;
+        }
+        if (update == null) {
+            response.sendError(400, "Invalid update");
+            return;
+        }
+
+        updateDispatcher.dispatch(update);
+        response.setStatus(HttpStatus.OK_200);
+    }
+
+}